@@ -15,6 +15,21 @@ repositories {
     jcenter()
 }
 
+// JMH benchmarks of the storage
+val jmh by sourceSets.creating {
+    compileClasspath += sourceSets.main.get().output
+    runtimeClasspath += sourceSets.main.get().output
+}
+
+configurations {
+    "jmhImplementation" {
+        extendsFrom(configurations.implementation.get())
+    }
+    "jmhRuntimeOnly" {
+        extendsFrom(configurations.runtimeOnly.get())
+    }
+}
+
 dependencies {
     // Checks
     errorprone("com.google.errorprone:error_prone_core:2.3.3")
@@ -32,12 +47,24 @@ dependencies {
     // JUnit Jupiter test framework
     testCompile("org.junit.jupiter:junit-jupiter-api:5.4.0")
     testRuntime("org.junit.jupiter:junit-jupiter-engine:5.4.0")
+
+    // JMH benchmarks
+    "jmhImplementation"("org.openjdk.jmh:jmh-core:1.23")
+    "jmhAnnotationProcessor"("org.openjdk.jmh:jmh-generator-annprocess:1.23")
 }
 
 val run by tasks.getting(JavaExec::class) {
     standardInput = System.`in`
 }
 
+// Runs the benchmarks, JMH options are passed as --args="ReadBenchmark -p tables=8"
+tasks.register<JavaExec>("jmh") {
+    description = "Runs JMH benchmarks of the storage."
+    group = "verification"
+    classpath = jmh.runtimeClasspath
+    main = "org.openjdk.jmh.Main"
+}
+
 tasks {
     test {
         maxHeapSize = "128m"
@@ -63,4 +90,10 @@ tasks.withType<JavaCompile> {
 // Error prone options
 tasks.named<JavaCompile>("compileTestJava") {
     options.errorprone.isEnabled.set(false)
-}
\ No newline at end of file
+}
+
+// Generated benchmark code isn't checked, annotations other than JMH ones are left unprocessed
+tasks.named<JavaCompile>("compileJmhJava") {
+    options.errorprone.isEnabled.set(false)
+    options.compilerArgs.add("-Xlint:-processing")
+}
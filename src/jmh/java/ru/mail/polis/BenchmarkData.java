@@ -0,0 +1,95 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Keys, values and storages shared by the benchmarks.
+ */
+final class BenchmarkData {
+
+    /** Amount of keys in the prepared storages. */
+    static final int KEYS = 50_000;
+    /** Amount of distinct values, each key gets one of them. */
+    private static final int VALUES = 64;
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * Zero-padded decimal keys, so that their order is the order of the numbers.
+     * @param count - amount of keys.
+     * @param size - size of a key, at least enough for the decimal number.
+     */
+    @NotNull
+    static ByteBuffer[] keys(
+            final int count,
+            final int size) {
+        final ByteBuffer[] keys = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = key(i, size);
+        }
+        return keys;
+    }
+
+    @NotNull
+    static ByteBuffer key(
+            final int i,
+            final int size) {
+        return ByteBuffer.wrap(String.format("%0" + size + "d", i).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @NotNull
+    static ByteBuffer[] values(final int size) {
+        final ByteBuffer[] values = new ByteBuffer[VALUES];
+        for (int i = 0; i < VALUES; i++) {
+            final byte[] value = new byte[size];
+            ThreadLocalRandom.current().nextBytes(value);
+            values[i] = ByteBuffer.wrap(value);
+        }
+        return values;
+    }
+
+    /**
+     * Config of the prepared storages, the tables are kept as they are written.
+     */
+    @NotNull
+    static LsmConfig config() {
+        return LsmConfig.builder()
+                .flushThreshold(1L << 30)
+                .compactionStrategy(CompactionStrategy.MANUAL)
+                .build();
+    }
+
+    /**
+     * Writes the keys to the storage, so that it consists of the given amount of SSTables.
+     * The keys are spread over the tables round-robin, so every table overlaps with the others.
+     */
+    static void populate(
+            @NotNull final File data,
+            @NotNull final ByteBuffer[] keys,
+            @NotNull final ByteBuffer[] values,
+            final int tables) throws IOException {
+        for (int table = 0; table < tables; table++) {
+            try (DAO dao = new LsmDAO(data, config())) {
+                for (int i = table; i < keys.length; i += tables) {
+                    dao.upsert(keys[i], values[i % values.length]);
+                }
+            }
+        }
+    }
+
+    @NotNull
+    static File createDirectory() throws IOException {
+        return java.nio.file.Files.createTempDirectory("lsm-bench").toFile();
+    }
+
+    static void delete(@NotNull final File data) throws IOException {
+        Files.recursiveDelete(data);
+    }
+}
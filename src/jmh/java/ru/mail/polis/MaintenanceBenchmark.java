@@ -0,0 +1,130 @@
+package ru.mail.polis;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One-off operations on a storage prepared anew for each of them: flush of the memory table,
+ * full compaction of the tables and opening of the storage.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class MaintenanceBenchmark {
+
+    /**
+     * Storage with the keys in the memory table.
+     */
+    @State(Scope.Benchmark)
+    public static class Unflushed {
+        @Param({"16", "64"})
+        private int keySize;
+        @Param({"100", "1024"})
+        private int valueSize;
+
+        private File data;
+        private ByteBuffer[] keys;
+        private ByteBuffer[] values;
+        private DAO dao;
+
+        @Setup(Level.Trial)
+        public void prepare() {
+            keys = BenchmarkData.keys(BenchmarkData.KEYS, keySize);
+            values = BenchmarkData.values(valueSize);
+        }
+
+        @Setup(Level.Invocation)
+        public void setUp() throws IOException {
+            data = BenchmarkData.createDirectory();
+            dao = new LsmDAO(data, BenchmarkData.config());
+            for (int i = 0; i < keys.length; i++) {
+                dao.upsert(keys[i], values[i % values.length]);
+            }
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() throws IOException {
+            BenchmarkData.delete(data);
+        }
+    }
+
+    /**
+     * Closed storage of the given amount of overlapping tables.
+     */
+    @State(Scope.Benchmark)
+    public static class Flushed {
+        @Param({"16", "64"})
+        private int keySize;
+        @Param({"100", "1024"})
+        private int valueSize;
+        @Param({"8", "32"})
+        private int tables;
+
+        private File data;
+        private ByteBuffer[] keys;
+        private ByteBuffer[] values;
+
+        @Setup(Level.Trial)
+        public void prepare() {
+            keys = BenchmarkData.keys(BenchmarkData.KEYS, keySize);
+            values = BenchmarkData.values(valueSize);
+        }
+
+        @Setup(Level.Invocation)
+        public void setUp() throws IOException {
+            data = BenchmarkData.createDirectory();
+            BenchmarkData.populate(data, keys, values, tables);
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() throws IOException {
+            BenchmarkData.delete(data);
+        }
+    }
+
+    /**
+     * Writes the memory table to disk, the storage is closed to wait for the flush.
+     */
+    @Benchmark
+    public void flush(final Unflushed storage) throws IOException {
+        storage.dao.close();
+    }
+
+    /**
+     * Merges the tables, the storage is closed to wait for the background compaction.
+     */
+    @Benchmark
+    public void compact(final Flushed storage) throws IOException {
+        try (DAO dao = new LsmDAO(storage.data, BenchmarkData.config())) {
+            dao.compact();
+        }
+    }
+
+    /**
+     * Opens the storage and looks up a key.
+     */
+    @Benchmark
+    public ByteBuffer coldStartup(final Flushed storage) throws IOException {
+        try (DAO dao = new LsmDAO(storage.data, BenchmarkData.config())) {
+            return dao.get(storage.keys[0]);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package ru.mail.polis;
+
+import org.openjdk.jmh.annotations.Benchmark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Point lookups of the keys spread over the tables.
+ */
+public class ReadBenchmark extends StorageBenchmark {
+
+    private int cursor;
+
+    @Benchmark
+    public ByteBuffer randomGet() throws IOException {
+        return dao.get(keys[ThreadLocalRandom.current().nextInt(keys.length)]);
+    }
+
+    @Benchmark
+    public ByteBuffer sequentialGet() throws IOException {
+        final ByteBuffer key = keys[cursor];
+        cursor = (cursor + 1) % keys.length;
+        return dao.get(key);
+    }
+
+    /**
+     * Lookups of the keys which fall into the key ranges of the tables, but are absent.
+     */
+    @Benchmark
+    public boolean missingGet() throws IOException {
+        final ByteBuffer key = keys[ThreadLocalRandom.current().nextInt(keys.length)].duplicate();
+        key.limit(key.limit() - 1);
+        try {
+            dao.get(key);
+            return true;
+        } catch (NoSuchElementException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package ru.mail.polis;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Range scans merging all the tables.
+ */
+public class ScanBenchmark extends StorageBenchmark {
+
+    @Param({"10", "100", "1000"})
+    private int scanLength;
+
+    @Benchmark
+    public void scan(final Blackhole blackhole) throws IOException {
+        final Iterator<Record> records = dao.iterator(keys[ThreadLocalRandom.current().nextInt(keys.length)]);
+        for (int i = 0; i < scanLength && records.hasNext(); i++) {
+            blackhole.consume(records.next());
+        }
+    }
+
+    /**
+     * The latest records before a key.
+     */
+    @Benchmark
+    public void descendingScan(final Blackhole blackhole) throws IOException {
+        final ByteBuffer to = keys[ThreadLocalRandom.current().nextInt(keys.length)];
+        final Iterator<Record> records = dao.descendingRange(ByteBuffer.allocate(0), to);
+        for (int i = 0; i < scanLength && records.hasNext(); i++) {
+            blackhole.consume(records.next());
+        }
+    }
+}
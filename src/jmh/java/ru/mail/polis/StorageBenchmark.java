@@ -0,0 +1,56 @@
+package ru.mail.polis;
+
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Storage consisting of several overlapping SSTables, prepared for the read benchmarks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public abstract class StorageBenchmark {
+
+    @Param({"16", "64"})
+    private int keySize;
+    @Param({"100", "1024"})
+    private int valueSize;
+    @Param({"1", "8", "32"})
+    private int tables;
+
+    private File data;
+    DAO dao;
+    ByteBuffer[] keys;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        data = BenchmarkData.createDirectory();
+        keys = BenchmarkData.keys(BenchmarkData.KEYS, keySize);
+        BenchmarkData.populate(data, keys, BenchmarkData.values(valueSize), tables);
+        dao = new LsmDAO(data, BenchmarkData.config());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        dao.close();
+        BenchmarkData.delete(data);
+    }
+}
@@ -0,0 +1,79 @@
+package ru.mail.polis;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Upserts of random keys with the default configuration, including the background flushes and compactions
+ * they cause.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WriteBenchmark {
+
+    private static final int BATCH_SIZE = 100;
+
+    @Param({"16", "64"})
+    private int keySize;
+    @Param({"100", "1024"})
+    private int valueSize;
+
+    private File data;
+    private DAO dao;
+    private ByteBuffer[] keys;
+    private ByteBuffer[] values;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        data = BenchmarkData.createDirectory();
+        keys = BenchmarkData.keys(BenchmarkData.KEYS, keySize);
+        values = BenchmarkData.values(valueSize);
+        dao = new LsmDAO(data, LsmConfig.builder().build());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        dao.close();
+        BenchmarkData.delete(data);
+    }
+
+    @Benchmark
+    public void upsert() throws IOException {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        dao.upsert(keys[random.nextInt(keys.length)], values[random.nextInt(values.length)]);
+    }
+
+    /**
+     * Upserts applied as batches, the score is the amount of the batches.
+     */
+    @Benchmark
+    public void batchUpsert() throws IOException {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final WriteBatch batch = new WriteBatch();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            batch.upsert(keys[random.nextInt(keys.length)], values[random.nextInt(values.length)]);
+        }
+        dao.apply(batch);
+    }
+}
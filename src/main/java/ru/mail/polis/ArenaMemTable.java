@@ -0,0 +1,503 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Memory table which copies keys and values to off-heap arena chunks, so the cells don't cost the heap
+ * anything but the chunk buffers, and the table is released at once when it is dropped after the flush.
+ * The cells are indexed by a skip list living in the arena too, its nodes are
+ * {@code [valueAddress][height][nextAddress]...[keySize][key]} and the values are
+ * {@code [sequence][valueSize][olderAddress][value]}, where tombstones have value size of -1.
+ * The node refers to the newest value of the key, which is linked to the older ones, so overwritten
+ * values stay in the arena and readable by the readers of the older sequence numbers until the table is dropped.
+ * An address holds the number of the chunk in its high half and the offset in the chunk in the low one.
+ * Writers are serialized, readers share the lock with each other.
+ */
+final class ArenaMemTable extends MemTable {
+
+    private static final int CHUNK_SIZE = 256 * 1024;
+    private static final int MAX_HEIGHT = 12;
+    private static final long NIL = -1L;
+    private static final int INT_BYTES = 4;
+    private static final int LONG_BYTES = 8;
+    private static final int NODE_HEADER_BYTES = LONG_BYTES + INT_BYTES;
+    private static final int VALUE_HEADER_BYTES = LONG_BYTES + INT_BYTES + LONG_BYTES;
+    private static final ByteBuffer EMPTY_KEY = ByteBuffer.allocate(0);
+
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    /** Predecessors of the inserted node at each level, reused by the writers. */
+    private final long[] preds = new long[MAX_HEIGHT];
+    private final AtomicLong sizeInBytes = new AtomicLong();
+    private final AtomicInteger count = new AtomicInteger();
+    private long head;
+    private int used;
+
+    ArenaMemTable() {
+        head = allocateNode(EMPTY_KEY, NIL, MAX_HEIGHT);
+    }
+
+    @NotNull
+    @Override
+    Iterator<Cell> iterator(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to,
+            final long maxSequence) {
+        return new ArenaIterator(from, to, maxSequence);
+    }
+
+    @NotNull
+    @Override
+    Iterator<Cell> descendingIterator(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to,
+            final long maxSequence) {
+        return new DescendingArenaIterator(from, to, maxSequence);
+    }
+
+    @Nullable
+    @Override
+    Value get(
+            @NotNull final ByteBuffer key,
+            final long maxSequence) {
+        lock.readLock().lock();
+        try {
+            final long node = seek(key, null);
+            if (node == NIL || compare(node, key) != 0) {
+                return null;
+            }
+            final long address = latest(valueAddress(node), maxSequence);
+            return address == NIL ? null : readValue(address);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    long upsert(@NotNull final ByteBuffer key, @NotNull final Value value) {
+        lock.writeLock().lock();
+        try {
+            final long found = seek(key, preds);
+            if (found != NIL && compare(found, key) == 0) {
+                final long newest = valueAddress(found);
+                if (sequence(newest) <= value.getSequence()) {
+                    chunk(found).putLong(offset(found), writeValue(value, newest));
+                } else {
+                    // Put the late version after the newer ones, ahead of the versions of the same sequence number
+                    long newer = newest;
+                    while (older(newer) != NIL && sequence(older(newer)) > value.getSequence()) {
+                        newer = older(newer);
+                    }
+                    final long valueAddress = writeValue(value, older(newer));
+                    chunk(newer).putLong(offset(newer) + LONG_BYTES + INT_BYTES, valueAddress);
+                }
+                final long growth = valueSize(value);
+                sizeInBytes.addAndGet(growth);
+                return growth;
+            }
+            final long valueAddress = writeValue(value, NIL);
+            final int height = randomHeight();
+            final long node = allocateNode(key, valueAddress, height);
+            for (int level = 0; level < height; level++) {
+                setNext(node, level, next(preds[level], level));
+                setNext(preds[level], level, node);
+            }
+            final long growth = (long) nodeSize(key.remaining(), height) + valueSize(value);
+            sizeInBytes.addAndGet(growth);
+            count.incrementAndGet();
+            return growth;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Bytes of the arena occupied by the cells, including overwritten values and the skip list nodes.
+     */
+    @Override
+    public long getSizeInByte() {
+        return sizeInBytes.get();
+    }
+
+    @Override
+    public int size() {
+        return count.get();
+    }
+
+    /**
+     * Drops all the chunks at once, the table is empty afterwards.
+     */
+    @Override
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            chunks.clear();
+            used = 0;
+            head = allocateNode(EMPTY_KEY, NIL, MAX_HEIGHT);
+            sizeInBytes.set(0);
+            count.set(0);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static int randomHeight() {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        int height = 1;
+        while (height < MAX_HEIGHT && random.nextInt(4) == 0) {
+            height++;
+        }
+        return height;
+    }
+
+    private static int nodeSize(
+            final int keySize,
+            final int height) {
+        return NODE_HEADER_BYTES + LONG_BYTES * height + INT_BYTES + keySize;
+    }
+
+    /**
+     * Finds the first node with the key greater than or equal to the given one.
+     * @param preds - receives the last node before the key at each level, if not null.
+     * @return the address of the node or {@link #NIL} if all the keys are less than the given one.
+     */
+    private long seek(
+            @NotNull final ByteBuffer key,
+            @Nullable final long[] preds) {
+        long node = head;
+        long next = NIL;
+        for (int level = MAX_HEIGHT - 1; level >= 0; level--) {
+            next = next(node, level);
+            while (next != NIL && compare(next, key) < 0) {
+                node = next;
+                next = next(node, level);
+            }
+            if (preds != null) {
+                preds[level] = node;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Finds the last node with the key less than the given one.
+     * The list isn't linked backwards, so stepping back costs a search from the top level.
+     * @param key - the key to find the node before, null to find the last node of the list.
+     * @return the address of the node or {@link #NIL} if there is none.
+     */
+    private long lower(@Nullable final ByteBuffer key) {
+        long node = head;
+        for (int level = MAX_HEIGHT - 1; level >= 0; level--) {
+            long next = next(node, level);
+            while (next != NIL && (key == null || compare(next, key) < 0)) {
+                node = next;
+                next = next(node, level);
+            }
+        }
+        return node == head ? NIL : node;
+    }
+
+    /**
+     * Compares the key of the node with the given one the same way as {@link ByteBuffer#compareTo} does.
+     */
+    private int compare(
+            final long node,
+            @NotNull final ByteBuffer key) {
+        final ByteBuffer chunk = chunk(node);
+        final int keyOffset = keyOffset(node);
+        final int keySize = chunk.getInt(keyOffset);
+        final int from = keyOffset + INT_BYTES;
+        final int length = Math.min(keySize, key.remaining());
+        for (int i = 0; i < length; i++) {
+            final int cmp = Byte.compare(chunk.get(from + i), key.get(key.position() + i));
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return Integer.compare(keySize, key.remaining());
+    }
+
+    private long allocate(final int size) {
+        if (chunks.isEmpty() || used + size > chunks.get(chunks.size() - 1).capacity()) {
+            chunks.add(ByteBuffer.allocateDirect(Math.max(CHUNK_SIZE, size)));
+            used = 0;
+        }
+        final long address = ((long) (chunks.size() - 1) << Integer.SIZE) | used;
+        used += size;
+        return address;
+    }
+
+    private long allocateNode(
+            @NotNull final ByteBuffer key,
+            final long valueAddress,
+            final int height) {
+        final int keySize = key.remaining();
+        final long node = allocate(nodeSize(keySize, height));
+        final ByteBuffer chunk = chunk(node);
+        final int offset = offset(node);
+        chunk.putLong(offset, valueAddress).putInt(offset + LONG_BYTES, height);
+        for (int level = 0; level < height; level++) {
+            setNext(node, level, NIL);
+        }
+        final int keyOffset = keyOffset(node);
+        chunk.putInt(keyOffset, keySize);
+        chunk.duplicate().position(keyOffset + INT_BYTES).put(key.duplicate());
+        return node;
+    }
+
+    private static int valueSize(@NotNull final Value value) {
+        return VALUE_HEADER_BYTES + (value.isTombstone() ? 0 : value.getData().remaining());
+    }
+
+    /**
+     * Copies the value to the arena.
+     * @param older - the address of the previous version of the key, {@link #NIL} if there is none.
+     */
+    private long writeValue(
+            @NotNull final Value value,
+            final long older) {
+        final int dataSize = value.isTombstone() ? 0 : value.getData().remaining();
+        final long address = allocate(VALUE_HEADER_BYTES + dataSize);
+        final ByteBuffer chunk = chunk(address);
+        final int offset = offset(address);
+        chunk.putLong(offset, value.getSequence());
+        chunk.putLong(offset + LONG_BYTES + INT_BYTES, older);
+        if (value.isTombstone()) {
+            chunk.putInt(offset + LONG_BYTES, -1);
+        } else {
+            chunk.putInt(offset + LONG_BYTES, dataSize);
+            chunk.duplicate().position(offset + VALUE_HEADER_BYTES).put(value.getData());
+        }
+        return address;
+    }
+
+    @NotNull
+    private Value readValue(final long address) {
+        final ByteBuffer chunk = chunk(address);
+        final int offset = offset(address);
+        final long sequence = chunk.getLong(offset);
+        final int valueSize = chunk.getInt(offset + LONG_BYTES);
+        if (valueSize == -1) {
+            return new Value(sequence);
+        }
+        return new Value(sequence, slice(chunk, offset + VALUE_HEADER_BYTES, valueSize));
+    }
+
+    private long sequence(final long value) {
+        return chunk(value).getLong(offset(value));
+    }
+
+    private long older(final long value) {
+        return chunk(value).getLong(offset(value) + LONG_BYTES + INT_BYTES);
+    }
+
+    /**
+     * Walks the versions of the key from the newest one.
+     * @return the address of the latest value not newer than the given sequence number, or {@link #NIL}.
+     */
+    private long latest(
+            final long newest,
+            final long maxSequence) {
+        long value = newest;
+        while (value != NIL && sequence(value) > maxSequence) {
+            value = older(value);
+        }
+        return value;
+    }
+
+    /**
+     * Reads the key of the node with its latest version not newer than the given sequence number.
+     * @return null if the key has only newer versions.
+     */
+    @Nullable
+    private Cell readCell(
+            final long node,
+            final long maxSequence) {
+        final long value = latest(valueAddress(node), maxSequence);
+        if (value == NIL) {
+            return null;
+        }
+        return new Cell(key(node), readValue(value));
+    }
+
+    @NotNull
+    private ByteBuffer key(final long node) {
+        final ByteBuffer chunk = chunk(node);
+        final int keyOffset = keyOffset(node);
+        return slice(chunk, keyOffset + INT_BYTES, chunk.getInt(keyOffset));
+    }
+
+    @NotNull
+    private static ByteBuffer slice(
+            @NotNull final ByteBuffer chunk,
+            final int offset,
+            final int size) {
+        return chunk.duplicate().position(offset).limit(offset + size).slice();
+    }
+
+    @NotNull
+    private ByteBuffer chunk(final long address) {
+        return chunks.get((int) (address >>> Integer.SIZE));
+    }
+
+    private static int offset(final long address) {
+        return (int) address;
+    }
+
+    private long valueAddress(final long node) {
+        return chunk(node).getLong(offset(node));
+    }
+
+    private int keyOffset(final long node) {
+        final int offset = offset(node);
+        return offset + NODE_HEADER_BYTES + LONG_BYTES * chunk(node).getInt(offset + LONG_BYTES);
+    }
+
+    private long next(
+            final long node,
+            final int level) {
+        return chunk(node).getLong(offset(node) + NODE_HEADER_BYTES + LONG_BYTES * level);
+    }
+
+    private void setNext(
+            final long node,
+            final int level,
+            final long next) {
+        chunk(node).putLong(offset(node) + NODE_HEADER_BYTES + LONG_BYTES * level, next);
+    }
+
+    /**
+     * Walks the bottom level of the skip list, the nodes are linked in under the write lock,
+     * so the iterator sees the keys inserted after its position. The next visible cell is read ahead,
+     * so that the keys having only newer versions are skipped.
+     */
+    private final class ArenaIterator implements Iterator<Cell> {
+
+        @Nullable
+        private final ByteBuffer to;
+        private final long maxSequence;
+        private long node;
+        @Nullable
+        private Cell next;
+
+        ArenaIterator(
+                @NotNull final ByteBuffer from,
+                @Nullable final ByteBuffer to,
+                final long maxSequence) {
+            this.to = to;
+            this.maxSequence = maxSequence;
+            lock.readLock().lock();
+            try {
+                advance(seek(from, null));
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Cell next() {
+            final Cell cell = next;
+            if (cell == null) {
+                throw new NoSuchElementException();
+            }
+            lock.readLock().lock();
+            try {
+                advance(ArenaMemTable.this.next(node, 0));
+                return cell;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        /**
+         * Reads the first visible cell starting at the given node, the walk is cut off at the end of the range.
+         */
+        private void advance(final long start) {
+            next = null;
+            for (node = start; node != NIL && (to == null || compare(node, to) < 0);
+                    node = ArenaMemTable.this.next(node, 0)) {
+                next = readCell(node, maxSequence);
+                if (next != null) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Walks the keys backwards, each step searches for the node before the current one.
+     */
+    private final class DescendingArenaIterator implements Iterator<Cell> {
+
+        @NotNull
+        private final ByteBuffer from;
+        private final long maxSequence;
+        @Nullable
+        private Cell next;
+
+        DescendingArenaIterator(
+                @NotNull final ByteBuffer from,
+                @Nullable final ByteBuffer to,
+                final long maxSequence) {
+            this.from = from;
+            this.maxSequence = maxSequence;
+            lock.readLock().lock();
+            try {
+                advance(lower(to));
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Cell next() {
+            final Cell cell = next;
+            if (cell == null) {
+                throw new NoSuchElementException();
+            }
+            lock.readLock().lock();
+            try {
+                advance(lower(cell.key()));
+                return cell;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        /**
+         * Reads the first visible cell starting at the given node and stepping back,
+         * the walk is cut off at the start of the range.
+         */
+        private void advance(final long start) {
+            next = null;
+            for (long node = start; node != NIL && compare(node, from) >= 0; node = lower(key(node))) {
+                next = readCell(node, maxSequence);
+                if (next != null) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Uncompressed block of an SSTable.
+ * The block is a run of {@code [keySize][key][sequence][valueSize][value]} cells followed by
+ * the int offsets of the cells and their count.
+ */
+final class Block {
+
+    private static final int INT_BYTES = 4;
+    private static final int LONG_BYTES = 8;
+
+    private final ByteBuffer data;
+    private final int count;
+    private final int shiftToOffsetsArray;
+
+    /**
+     * Wraps the block contents.
+     * @param data - the block, starting at position zero.
+     */
+    Block(@NotNull final ByteBuffer data) {
+        this.data = data;
+        this.count = data.getInt(data.limit() - INT_BYTES);
+        this.shiftToOffsetsArray = data.limit() - INT_BYTES * (count + 1);
+    }
+
+    int size() {
+        return count;
+    }
+
+    /**
+     * Bytes of the block contents.
+     */
+    int sizeInBytes() {
+        return data.limit();
+    }
+
+    /**
+     * Binary search of the key in the block.
+     * @return the position of the key if it is present, otherwise {@code -(insertion point) - 1}.
+     */
+    int search(@NotNull final ByteBuffer key) {
+        int left = 0;
+        int right = count - 1;
+        while (left <= right) {
+            final int mid = (left + right) >>> 1;
+            final int cmp = key(mid).compareTo(key);
+            if (cmp < 0) {
+                left = mid + 1;
+            } else if (cmp > 0) {
+                right = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -left - 1;
+    }
+
+    @NotNull
+    Cell cell(final int position) {
+        final int offset = offset(position);
+        final int keySize = data.getInt(offset);
+        return new Cell(slice(offset + INT_BYTES, keySize), readValue(offset + INT_BYTES + keySize));
+    }
+
+    @NotNull
+    Value value(final int position) {
+        final int offset = offset(position);
+        return readValue(offset + INT_BYTES + data.getInt(offset));
+    }
+
+    private int offset(final int position) {
+        return data.getInt(shiftToOffsetsArray + position * INT_BYTES);
+    }
+
+    @NotNull
+    private ByteBuffer key(final int position) {
+        final int offset = offset(position);
+        return slice(offset + INT_BYTES, data.getInt(offset));
+    }
+
+    @NotNull
+    private Value readValue(final int valueOffset) {
+        final long sequence = data.getLong(valueOffset);
+        final int valueSize = data.getInt(valueOffset + LONG_BYTES);
+        if (valueSize == -1) {
+            return new Value(sequence);
+        }
+        return new Value(sequence, slice(valueOffset + LONG_BYTES + INT_BYTES, valueSize));
+    }
+
+    @NotNull
+    private ByteBuffer slice(
+            final int offset,
+            final int size) {
+        return data.duplicate()
+                .position(offset)
+                .limit(offset + size)
+                .slice();
+    }
+}
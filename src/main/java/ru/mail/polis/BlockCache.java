@@ -0,0 +1,155 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decoded SSTable blocks, so that hot keys are looked up without reading and inflating their blocks again.
+ * The cache may be shared by several storages, it is bounded by the bytes of the blocks and evicts
+ * the least recently used ones. Blocks are keyed by the file of their table and their number, so they
+ * survive the file being closed and reopened by the {@link TableCache}, and the blocks of a table
+ * replaced by compaction or closed are dropped with it.
+ */
+public final class BlockCache {
+
+    /** Bookkeeping of an entry on top of the block bytes. */
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private final long capacity;
+    private final Map<Key, Block> blocks = new LinkedHashMap<>(16, 0.75f, true);
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private long sizeInBytes;
+
+    /**
+     * Creates the cache.
+     * @param capacity - amount of bytes the cached blocks may take.
+     */
+    public BlockCache(final long capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Block cache capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Amount of bytes taken by the cached blocks.
+     */
+    public synchronized long getSizeInBytes() {
+        return sizeInBytes;
+    }
+
+    /**
+     * Amount of lookups which found the block in the cache.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Amount of lookups which had to read the block from the table.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Amount of blocks dropped to fit into the capacity, not counting the ones of removed tables.
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    @Nullable
+    Block get(
+            @NotNull final SSTable table,
+            final int block) {
+        final Block cached;
+        synchronized (this) {
+            cached = blocks.get(new Key(table.file(), block));
+        }
+        (cached == null ? misses : hits).incrementAndGet();
+        return cached;
+    }
+
+    void put(
+            @NotNull final SSTable table,
+            final int block,
+            @NotNull final Block cells) {
+        final long size = sizeOf(cells);
+        if (size > capacity) {
+            return;
+        }
+        synchronized (this) {
+            final Block previous = blocks.put(new Key(table.file(), block), cells);
+            if (previous != null) {
+                sizeInBytes -= sizeOf(previous);
+            }
+            sizeInBytes += size;
+            final var eldest = blocks.values().iterator();
+            while (sizeInBytes > capacity) {
+                sizeInBytes -= sizeOf(eldest.next());
+                eldest.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Drops the blocks of the table which is no longer read through the cache.
+     */
+    synchronized void invalidate(@NotNull final SSTable table) {
+        final File file = table.file().getAbsoluteFile();
+        final var entries = blocks.entrySet().iterator();
+        while (entries.hasNext()) {
+            final Map.Entry<Key, Block> entry = entries.next();
+            if (entry.getKey().file.equals(file)) {
+                sizeInBytes -= sizeOf(entry.getValue());
+                entries.remove();
+            }
+        }
+    }
+
+    private static long sizeOf(@NotNull final Block block) {
+        return (long) ENTRY_OVERHEAD + block.sizeInBytes();
+    }
+
+    private static final class Key {
+        private final File file;
+        private final int block;
+
+        Key(
+                @NotNull final File file,
+                final int block) {
+            this.file = file.getAbsoluteFile();
+            this.block = block;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return block == other.block && file.equals(other.file);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * file.hashCode() + block;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * In-memory index of the blocks of an SSTable.
+ * Each block is described by its separator key, offset in the file, stored and uncompressed sizes.
+ * The separator of the first block is empty, the separators of the other blocks are the shortest prefixes
+ * of their first keys which are greater than the last keys of the previous blocks.
+ * In the file the index is a run of {@code [keySize][key][offset][storedSize][rawSize]} entries followed by
+ * the key range of the table as {@code [firstKeySize][firstKey][lastKeySize][lastKey]}, which is not kept in memory.
+ */
+final class BlockIndex {
+
+    private final int count;
+    private final byte[] keys;
+    private final int[] keyOffsets;
+    private final long[] offsets;
+    private final int[] sizes;
+    private final int[] rawSizes;
+
+    /**
+     * Parses the index section of the file.
+     * @param section - the index section.
+     * @param count - amount of the blocks.
+     */
+    BlockIndex(
+            @NotNull final ByteBuffer section,
+            final int count) {
+        this.count = count;
+        this.keyOffsets = new int[count + 1];
+        this.offsets = new long[count];
+        this.sizes = new int[count];
+        this.rawSizes = new int[count];
+        final ByteBuffer in = section.duplicate();
+        final ByteBuffer packed = ByteBuffer.allocate(in.remaining());
+        for (int i = 0; i < count; i++) {
+            final int keySize = in.getInt();
+            packed.put(in.duplicate().limit(in.position() + keySize));
+            in.position(in.position() + keySize);
+            keyOffsets[i + 1] = packed.position();
+            offsets[i] = in.getLong();
+            sizes[i] = in.getInt();
+            rawSizes[i] = in.getInt();
+        }
+        this.keys = new byte[packed.position()];
+        packed.flip().get(keys);
+    }
+
+    int blocks() {
+        return count;
+    }
+
+    /**
+     * Finds the block which may contain the key.
+     * @return the number of the last block with the separator less than or equal to the key,
+     *         or -1 if the table is empty.
+     */
+    int floor(@NotNull final ByteBuffer key) {
+        int left = 0;
+        int right = count - 1;
+        while (left <= right) {
+            final int mid = (left + right) >>> 1;
+            final int cmp = ByteBuffer.wrap(keys, keyOffsets[mid], keyOffsets[mid + 1] - keyOffsets[mid])
+                    .compareTo(key);
+            if (cmp < 0) {
+                left = mid + 1;
+            } else if (cmp > 0) {
+                right = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return right;
+    }
+
+    long offset(final int block) {
+        return offsets[block];
+    }
+
+    /**
+     * Size of the block in the file.
+     */
+    int size(final int block) {
+        return sizes[block];
+    }
+
+    /**
+     * Size of the uncompressed block.
+     */
+    int rawSize(final int block) {
+        return rawSizes[block];
+    }
+
+    boolean isCompressed(final int block) {
+        return sizes[block] < rawSizes[block];
+    }
+
+    /**
+     * Memory occupied by the index.
+     */
+    long sizeInBytes() {
+        return keys.length + (long) count * (Integer.BYTES * 3 + Long.BYTES);
+    }
+}
@@ -0,0 +1,103 @@
+package ru.mail.polis;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Bloom filter over the keys of an SSTable.
+ * Keys are hashed once with 128-bit murmur3, the probes are derived by double hashing of its halves.
+ */
+final class BloomFilter {
+
+    /** Filter which never rules a key out, used for tables without a filter. */
+    static final BloomFilter ALL = new BloomFilter(new long[0], 0);
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+    private static final int MAX_HASHES = 30;
+
+    private final long[] bits;
+    private final int hashes;
+
+    BloomFilter(
+            @NotNull final long[] bits,
+            final int hashes) {
+        this.bits = bits;
+        this.hashes = hashes;
+    }
+
+    /**
+     * Creates the empty filter sized for the expected amount of keys, the keys are added as they come.
+     * More keys than expected only raise the rate of false positives.
+     * @param expectedKeys - amount of the keys the filter is sized for.
+     * @param bitsPerKey - size of the filter per key, 10 bits give about 1% of false positives.
+     * @return the filter, or {@link #ALL} if the filter is disabled or no keys are expected.
+     */
+    @NotNull
+    static BloomFilter create(
+            final long expectedKeys,
+            final int bitsPerKey) {
+        if (bitsPerKey <= 0 || expectedKeys <= 0) {
+            return ALL;
+        }
+        final long numBits = Math.min(
+                (long) Integer.MAX_VALUE * Long.SIZE,
+                Math.max(Long.SIZE, expectedKeys * bitsPerKey));
+        final int hashes = (int) Math.max(1, Math.min(MAX_HASHES, Math.round(bitsPerKey * Math.log(2))));
+        return new BloomFilter(new long[(int) ((numBits + Long.SIZE - 1) / Long.SIZE)], hashes);
+    }
+
+    /**
+     * Adds the key to the filter, nothing is done for {@link #ALL}.
+     */
+    void add(@NotNull final ByteBuffer key) {
+        if (bits.length > 0) {
+            add(hash(key));
+        }
+    }
+
+    static long hash(@NotNull final ByteBuffer key) {
+        final HashCode code = HASH.hashBytes(key.duplicate());
+        return code.asLong();
+    }
+
+    boolean mightContain(@NotNull final ByteBuffer key) {
+        return bits.length == 0 || mightContain(hash(key));
+    }
+
+    long[] bits() {
+        return bits;
+    }
+
+    int hashes() {
+        return hashes;
+    }
+
+    private void add(final long hash) {
+        final long numBits = (long) bits.length * Long.SIZE;
+        long combined = hash;
+        final long step = Long.rotateLeft(hash, 32) | 1;
+        for (int i = 0; i < hashes; i++) {
+            final long index = (combined & Long.MAX_VALUE) % numBits;
+            bits[(int) (index >>> 6)] |= 1L << index;
+            combined += step;
+        }
+    }
+
+    private boolean mightContain(final long hash) {
+        final long numBits = (long) bits.length * Long.SIZE;
+        long combined = hash;
+        final long step = Long.rotateLeft(hash, 32) | 1;
+        for (int i = 0; i < hashes; i++) {
+            final long index = (combined & Long.MAX_VALUE) % numBits;
+            if ((bits[(int) (index >>> 6)] & (1L << index)) == 0) {
+                return false;
+            }
+            combined += step;
+        }
+        return true;
+    }
+}
@@ -21,6 +21,14 @@ public class Cell {
         return key.asReadOnlyBuffer();
     }
 
+    /**
+     * The key itself rather than its view, the caller must not change it.
+     */
+    @NotNull
+    ByteBuffer key() {
+        return key;
+    }
+
     public Value getValue() {
         return value;
     }
@@ -0,0 +1,27 @@
+package ru.mail.polis;
+
+import com.google.common.collect.Range;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+
+/**
+ * Chooses SSTables to be merged by the background compaction of {@link LsmDAO}.
+ * Only adjacent tables are merged, so the result takes their place in the order of the tables
+ * from the newest to the oldest one and point lookups may still stop at the first version found.
+ */
+@FunctionalInterface
+public interface CompactionStrategy {
+
+    /** Leaves the tables alone, they are only merged by {@link DAO#compact()}. */
+    CompactionStrategy MANUAL = sizes -> null;
+
+    /**
+     * Chooses the run of adjacent tables to merge.
+     * @param sizes - sizes of the SSTables in bytes, from the newest to the oldest one.
+     * @return indexes of the tables to merge, at least two of them, or null if nothing needs to be merged.
+     */
+    @Nullable
+    Range<Integer> pick(@NotNull List<Long> sizes);
+}
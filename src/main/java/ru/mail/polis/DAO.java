@@ -22,6 +22,8 @@ import org.jetbrains.annotations.Nullable;
 import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
@@ -64,6 +66,22 @@ public interface DAO extends Closeable {
         return Iters.until(iterator(from), bound);
     }
 
+    /**
+     * Provides iterator (possibly empty) over {@link Record}s from "from" key (inclusive)
+     * until given "to" key (exclusive) in <b>descending</b> order according to {@link Record#compareTo(Record)},
+     * i.e. starting at the greatest key before "to" key, or at the greatest key at all if "to" is null.
+     * Implementations should seek to the end of the range as fast as to its start,
+     * this one collects the whole range in memory first.
+     */
+    @NotNull
+    default Iterator<Record> descendingRange(
+            @NotNull ByteBuffer from,
+            @Nullable ByteBuffer to) throws IOException {
+        final Deque<Record> records = new ArrayDeque<>();
+        range(from, to).forEachRemaining(records::push);
+        return records.iterator();
+    }
+
     /**
      * Obtains {@link Record} corresponding to given key.
      *
@@ -96,6 +114,27 @@ public interface DAO extends Closeable {
      */
     void remove(@NotNull ByteBuffer key) throws IOException;
 
+    /**
+     * Applies the mutations of the batch in their order.
+     * Implementations may apply the batch atomically, this one applies the mutations one by one.
+     */
+    default void apply(@NotNull WriteBatch batch) throws IOException {
+        for (int i = 0; i < batch.size(); i++) {
+            final ByteBuffer value = batch.value(i);
+            if (value == null) {
+                remove(batch.key(i));
+            } else {
+                upsert(batch.key(i), value);
+            }
+        }
+    }
+
+    /**
+     * Takes a consistent view of the storage, which isn't affected by the writes made after the call.
+     */
+    @NotNull
+    Snapshot snapshot() throws IOException;
+
     /**
      * Perform compaction.
      */
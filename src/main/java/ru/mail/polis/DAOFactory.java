@@ -53,7 +53,6 @@ public final class DAOFactory {
             throw new IllegalArgumentException("Path is not a directory: " + data);
         }
 
-        // TODO: Implement me
-        return new LsmDAO(data, (int)MAX_HEAP / 32);
+        return new LsmDAO(data, LsmConfig.builder().build());
     }
 }
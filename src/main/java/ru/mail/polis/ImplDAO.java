@@ -1,38 +1,126 @@
 package ru.mail.polis;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Iterator;
-import java.util.SortedMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
 import java.util.TreeMap;
 
 public class ImplDAO implements DAO {
-    private final SortedMap<ByteBuffer, ByteBuffer> map = new TreeMap<>();
+    private final NavigableMap<ByteBuffer, ByteBuffer> map = new TreeMap<>();
+    private long sequence;
 
     @NotNull
     @Override
     public Iterator<Record> iterator(@NotNull final ByteBuffer from) throws IOException {
-        return map.tailMap(from)
-                .entrySet()
-                .stream()
-                .map(element -> Record.of(element.getKey(), element.getValue()))
-                .iterator();
+        return records(map.tailMap(from, true));
     }
 
     @Override
     public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) throws IOException {
         map.put(key, value);
+        sequence++;
     }
 
     @Override
     public void remove(@NotNull final ByteBuffer key) throws IOException {
         map.remove(key);
+        sequence++;
+    }
+
+    /**
+     * Takes the view over a copy of the records, so it costs a pass over the whole storage.
+     */
+    @NotNull
+    @Override
+    public Snapshot snapshot() throws IOException {
+        return new CopySnapshot(new TreeMap<>(map), sequence);
     }
 
     @Override
     public void close() throws IOException {
         map.clear();
     }
+
+    @NotNull
+    private static Iterator<Record> records(@NotNull final Map<ByteBuffer, ByteBuffer> map) {
+        return map.entrySet()
+                .stream()
+                .map(element -> Record.of(element.getKey(), element.getValue()))
+                .iterator();
+    }
+
+    private static final class CopySnapshot implements Snapshot {
+        private final NavigableMap<ByteBuffer, ByteBuffer> map;
+        private final long sequence;
+
+        CopySnapshot(
+                @NotNull final NavigableMap<ByteBuffer, ByteBuffer> map,
+                final long sequence) {
+            this.map = map;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public long getSequence() {
+            return sequence;
+        }
+
+        @NotNull
+        @Override
+        public Iterator<Record> iterator(@NotNull final ByteBuffer from) {
+            return records(map.tailMap(from, true));
+        }
+
+        @NotNull
+        @Override
+        public Iterator<Record> range(
+                @NotNull final ByteBuffer from,
+                @Nullable final ByteBuffer to) {
+            final NavigableMap<ByteBuffer, ByteBuffer> range = subMap(from, to);
+            return range == null ? Iters.empty() : records(range);
+        }
+
+        @NotNull
+        @Override
+        public Iterator<Record> descendingRange(
+                @NotNull final ByteBuffer from,
+                @Nullable final ByteBuffer to) {
+            final NavigableMap<ByteBuffer, ByteBuffer> range = subMap(from, to);
+            return range == null ? Iters.empty() : records(range.descendingMap());
+        }
+
+        @NotNull
+        @Override
+        public ByteBuffer get(@NotNull final ByteBuffer key) throws NoSuchElementException {
+            final ByteBuffer value = map.get(key);
+            if (value == null) {
+                throw new NoSuchElementException("Not found");
+            }
+            return value.asReadOnlyBuffer();
+        }
+
+        @Override
+        public void close() {
+            // Nothing to release, the copy is collected with the view
+        }
+
+        @Nullable
+        private NavigableMap<ByteBuffer, ByteBuffer> subMap(
+                @NotNull final ByteBuffer from,
+                @Nullable final ByteBuffer to) {
+            if (to == null) {
+                return map.tailMap(from, true);
+            }
+            if (from.compareTo(to) > 0) {
+                return null;
+            }
+            return map.subMap(from, true, to, false);
+        }
+    }
 }
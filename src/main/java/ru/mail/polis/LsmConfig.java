@@ -0,0 +1,340 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Tuning knobs of {@link LsmDAO}.
+ */
+public final class LsmConfig {
+
+    private final long flushThreshold;
+    private final int maxPendingFlushes;
+    private final boolean mmapReads;
+    private final int bloomBitsPerKey;
+    private final WalSync walSync;
+    private final long walSyncIntervalMillis;
+    private final long walSyncBytes;
+    private final int blockSize;
+    private final Compression compression;
+    private final CompactionStrategy compactionStrategy;
+    private final int maxSSTables;
+    private final int maxOpenFiles;
+    private final Allocation memTableAllocation;
+    private final MemTableBudget memTableBudget;
+    private final BlockCache blockCache;
+    private final long rowCacheSize;
+
+    /**
+     * When the write-ahead log is forced to disk.
+     */
+    public enum WalSync {
+        /** Every mutation is synced before it is applied. */
+        ALWAYS,
+        /** The log is synced periodically and whenever enough unsynced bytes are accumulated. */
+        GROUP,
+        /** The log is never synced explicitly, it survives process crashes but not OS crashes. */
+        NONE
+    }
+
+    /**
+     * How SSTable blocks are compressed.
+     */
+    public enum Compression {
+        /** Blocks are stored as is. */
+        NONE,
+        /** Blocks are deflated, a block is stored as is if it doesn't shrink. */
+        DEFLATE
+    }
+
+    /**
+     * Where the memory table keeps the cells.
+     */
+    public enum Allocation {
+        /** Keys and values are heap buffers in a concurrent skip list. */
+        HEAP,
+        /** Keys and values are copied to off-heap arena chunks, indexed by a skip list of offsets in the arena. */
+        OFF_HEAP
+    }
+
+    private LsmConfig(final Builder builder) {
+        this.flushThreshold = builder.flushThreshold;
+        this.maxPendingFlushes = builder.maxPendingFlushes;
+        this.mmapReads = builder.mmapReads;
+        this.bloomBitsPerKey = builder.bloomBitsPerKey;
+        this.walSync = builder.walSync;
+        this.walSyncIntervalMillis = builder.walSyncIntervalMillis;
+        this.walSyncBytes = builder.walSyncBytes;
+        this.blockSize = builder.blockSize;
+        this.compression = builder.compression;
+        this.compactionStrategy = builder.compactionStrategy;
+        this.maxSSTables = builder.maxSSTables;
+        this.maxOpenFiles = builder.maxOpenFiles;
+        this.memTableAllocation = builder.memTableAllocation;
+        this.memTableBudget = builder.memTableBudget;
+        this.blockCache = builder.blockCache;
+        this.rowCacheSize = builder.rowCacheSize;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Amount of bytes in the memory table after which it is flushed to disk, 1/32 of the heap by default.
+     * The size of a table accounts for the memory its cells retain, not just the bytes of keys and values.
+     */
+    public long getFlushThreshold() {
+        return flushThreshold;
+    }
+
+    /**
+     * Amount of frozen memory tables waiting for the background flush after which writers are blocked.
+     */
+    public int getMaxPendingFlushes() {
+        return maxPendingFlushes;
+    }
+
+    /**
+     * Whether SSTables are memory-mapped instead of being read through the file channel.
+     */
+    public boolean isMmapReads() {
+        return mmapReads;
+    }
+
+    /**
+     * Size of the Bloom filter of an SSTable per key, zero disables the filters.
+     * 10 bits per key give about 1% of false positives, every 5 more bits divide it by ten.
+     */
+    public int getBloomBitsPerKey() {
+        return bloomBitsPerKey;
+    }
+
+    public WalSync getWalSync() {
+        return walSync;
+    }
+
+    /**
+     * Maximum delay between syncs of the write-ahead log in {@link WalSync#GROUP} mode.
+     */
+    public long getWalSyncIntervalMillis() {
+        return walSyncIntervalMillis;
+    }
+
+    /**
+     * Amount of unsynced bytes which forces a sync of the write-ahead log in {@link WalSync#GROUP} mode.
+     */
+    public long getWalSyncBytes() {
+        return walSyncBytes;
+    }
+
+    /**
+     * Target uncompressed size of SSTable blocks, a block holding a single large cell may exceed it.
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public Compression getCompression() {
+        return compression;
+    }
+
+    /**
+     * Chooses SSTables to be merged in the background.
+     */
+    public CompactionStrategy getCompactionStrategy() {
+        return compactionStrategy;
+    }
+
+    /**
+     * Amount of SSTables after which writers are stalled while the background compaction is merging them.
+     */
+    public int getMaxSSTables() {
+        return maxSSTables;
+    }
+
+    /**
+     * Amount of SSTables kept open, the least recently used ones are closed beyond it.
+     * Tables read by running iterators or replaced by compaction stay open until they are released.
+     */
+    public int getMaxOpenFiles() {
+        return maxOpenFiles;
+    }
+
+    public Allocation getMemTableAllocation() {
+        return memTableAllocation;
+    }
+
+    /**
+     * Memory shared by the memory tables, possibly of several storages, or null if only the flush threshold
+     * of each table applies.
+     */
+    @Nullable
+    public MemTableBudget getMemTableBudget() {
+        return memTableBudget;
+    }
+
+    /**
+     * Decoded SSTable blocks kept in memory, possibly shared by several storages, or null if blocks are
+     * read from the tables on every lookup.
+     */
+    @Nullable
+    public BlockCache getBlockCache() {
+        return blockCache;
+    }
+
+    /**
+     * Memory taken by the latest values of the recently looked up keys, zero disables the cache of rows.
+     */
+    public long getRowCacheSize() {
+        return rowCacheSize;
+    }
+
+    public static final class Builder {
+        private long flushThreshold = Runtime.getRuntime().maxMemory() / 32;
+        private int maxPendingFlushes = 1;
+        private boolean mmapReads = true;
+        private int bloomBitsPerKey = 10;
+        private WalSync walSync = WalSync.GROUP;
+        private long walSyncIntervalMillis = 10;
+        private long walSyncBytes = 1024 * 1024;
+        private int blockSize = 16 * 1024;
+        private Compression compression = Compression.DEFLATE;
+        private CompactionStrategy compactionStrategy = new SizeTieredCompactionStrategy();
+        private int maxSSTables = 64;
+        private int maxOpenFiles = 1000;
+        private Allocation memTableAllocation = Allocation.HEAP;
+        private MemTableBudget memTableBudget;
+        private BlockCache blockCache = new BlockCache(8 * 1024 * 1024);
+        private long rowCacheSize;
+
+        private Builder() {
+        }
+
+        public Builder flushThreshold(final long flushThreshold) {
+            if (flushThreshold <= 0) {
+                throw new IllegalArgumentException("Flush threshold must be positive: " + flushThreshold);
+            }
+            this.flushThreshold = flushThreshold;
+            return this;
+        }
+
+        public Builder maxPendingFlushes(final int maxPendingFlushes) {
+            if (maxPendingFlushes <= 0) {
+                throw new IllegalArgumentException("Amount of pending flushes must be positive: " + maxPendingFlushes);
+            }
+            this.maxPendingFlushes = maxPendingFlushes;
+            return this;
+        }
+
+        public Builder mmapReads(final boolean mmapReads) {
+            this.mmapReads = mmapReads;
+            return this;
+        }
+
+        public Builder bloomBitsPerKey(final int bloomBitsPerKey) {
+            if (bloomBitsPerKey < 0) {
+                throw new IllegalArgumentException(
+                        "Bloom filter bits per key must not be negative: " + bloomBitsPerKey);
+            }
+            this.bloomBitsPerKey = bloomBitsPerKey;
+            return this;
+        }
+
+        public Builder walSync(@NotNull final WalSync walSync) {
+            this.walSync = walSync;
+            return this;
+        }
+
+        /**
+         * Enables group commit of the write-ahead log.
+         * @param intervalMillis - maximum delay between syncs.
+         * @param bytes - amount of unsynced bytes which forces a sync.
+         */
+        public Builder walGroupCommit(
+                final long intervalMillis,
+                final long bytes) {
+            if (intervalMillis <= 0 || bytes <= 0) {
+                throw new IllegalArgumentException("Group commit bounds must be positive");
+            }
+            this.walSync = WalSync.GROUP;
+            this.walSyncIntervalMillis = intervalMillis;
+            this.walSyncBytes = bytes;
+            return this;
+        }
+
+
+        public Builder blockSize(final int blockSize) {
+            if (blockSize <= 0) {
+                throw new IllegalArgumentException("Block size must be positive: " + blockSize);
+            }
+            this.blockSize = blockSize;
+            return this;
+        }
+
+        public Builder compression(@NotNull final Compression compression) {
+            this.compression = compression;
+            return this;
+        }
+
+        /**
+         * Sets the strategy of the background compaction, {@link CompactionStrategy#MANUAL} disables it.
+         */
+        public Builder compactionStrategy(@NotNull final CompactionStrategy compactionStrategy) {
+            this.compactionStrategy = compactionStrategy;
+            return this;
+        }
+
+        public Builder maxSSTables(final int maxSSTables) {
+            if (maxSSTables <= 0) {
+                throw new IllegalArgumentException("Amount of SSTables must be positive: " + maxSSTables);
+            }
+            this.maxSSTables = maxSSTables;
+            return this;
+        }
+
+        public Builder maxOpenFiles(final int maxOpenFiles) {
+            if (maxOpenFiles <= 0) {
+                throw new IllegalArgumentException("Amount of open files must be positive: " + maxOpenFiles);
+            }
+            this.maxOpenFiles = maxOpenFiles;
+            return this;
+        }
+
+        public Builder memTableAllocation(@NotNull final Allocation memTableAllocation) {
+            this.memTableAllocation = memTableAllocation;
+            return this;
+        }
+
+        /**
+         * Bounds the memory of all the memory tables sharing the budget, see {@link MemTableBudget}.
+         */
+        public Builder memTableBudget(@Nullable final MemTableBudget memTableBudget) {
+            this.memTableBudget = memTableBudget;
+            return this;
+        }
+
+        /**
+         * Sets the cache of SSTable blocks, null disables it.
+         * By default every builder creates its own 8MB cache, which is shared by the storages opened
+         * with the configurations it builds. Pass the same cache to several builders to share it
+         * between differently configured storages, its blocks are keyed by the paths of the tables.
+         */
+        public Builder blockCache(@Nullable final BlockCache blockCache) {
+            this.blockCache = blockCache;
+            return this;
+        }
+
+        public Builder rowCacheSize(final long rowCacheSize) {
+            if (rowCacheSize < 0) {
+                throw new IllegalArgumentException("Row cache size must not be negative: " + rowCacheSize);
+            }
+            this.rowCacheSize = rowCacheSize;
+            return this;
+        }
+
+        public LsmConfig build() {
+            return new LsmConfig(this);
+        }
+    }
+}
@@ -1,20 +1,39 @@
 package ru.mail.polis;
 
+import com.google.common.collect.DiscreteDomain;
 import com.google.common.collect.Iterators;
+import com.google.common.collect.Range;
 import org.checkerframework.checker.nullness.qual.NonNull;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Stream;
 
@@ -25,15 +44,48 @@ public class LsmDAO implements DAO {
 
     private static final String FILE_POSTFIX = ".dat";
     private static final String TEMP_FILE_POSTFIX = ".tmp";
+    /** Memory tables smaller than that share of the budget aren't flushed to meet it. */
+    private static final int MIN_BUDGET_SHARE = 16;
+    /** Delays between the attempts to flush a memory table, doubled after every failure. */
+    private static final long MIN_FLUSH_RETRY_MILLIS = 100;
+    private static final long MAX_FLUSH_RETRY_MILLIS = 10_000;
 
     @NonNull
     private final File storage;
-    private final int flushThreshold;
+    private final long flushThreshold;
+    @Nullable
+    private final MemTableBudget budget;
+    private final int maxPendingFlushes;
+    private final LsmConfig config;
 
-    private MemTable memtable;
-    private final NavigableMap<Integer, Table> ssTables;
-
-    private int generation;
+    private volatile TableSet tables;
+    private final WriteAheadLog wal;
+    private final Manifest manifest;
+    /** The sequence number of the latest mutation, the versions of the mutations are numbered in order. */
+    private final AtomicLong sequence;
+    /**
+     * The sequence number of the latest mutation visible to the readers, guarded by {@link #visibility}.
+     * The mutations of the active memory table newer than that are skipped by the readers.
+     */
+    private volatile long visibleSequence;
+    private final Object visibility = new Object();
+    private final TableCache tableCache;
+    @Nullable
+    private final RowCache rowCache;
+    private final ExecutorService flusher;
+    private final ExecutorService compactor;
+    private final CompactionStrategy compactionStrategy;
+    private final int maxSSTables;
+    private boolean compactionScheduled;
+    private boolean fullCompactionScheduled;
+    private boolean compacting;
+    /** Open snapshots, which are closed along with the storage. */
+    private final Set<View> views = ConcurrentHashMap.newKeySet();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private int pendingFlushes;
+    /** The error of the last attempt to flush the oldest frozen memory table, writes are refused while it is set. */
+    @Nullable
+    private volatile IOException flushFailure;
 
     /**
      * LSM DAO implementation.
@@ -43,117 +95,876 @@ public class LsmDAO implements DAO {
     public LsmDAO(
             @NotNull final File storage,
             final int flushThreshold) throws IOException {
+        this(storage, LsmConfig.builder().flushThreshold(flushThreshold).build());
+    }
+
+    /**
+     * LSM DAO implementation.
+     * @param storage - the directory where SSTables stored.
+     * @param config - tuning parameters of the storage.
+     */
+    public LsmDAO(
+            @NotNull final File storage,
+            @NotNull final LsmConfig config) throws IOException {
         this.storage = storage;
-        this.flushThreshold = flushThreshold;
-        this.memtable = new MemTable();
-        this.ssTables = new TreeMap<>();
-        try (Stream<Path> files = Files.list(storage.toPath())) {
-            files.filter(file -> !file.toFile().isDirectory() && file.toString().endsWith(FILE_POSTFIX))
-                    .forEach(file -> {
-                        final String fileName = file.getFileName().toString();
-                        try {
-                            final int gen = Integer.parseInt(fileName.substring(0, fileName.indexOf(FILE_POSTFIX)));
-                            generation = Math.max(gen, generation);
-                            ssTables.put(gen, new SSTable(file.toFile()));
-                        } catch (IOException e) {
-                            logger.info("Something went wrong in LsmDao ctor");
-                        } catch (NumberFormatException e) {
-                            logger.info("Unexpected name of SSTable file");
-                        }
-                    });
-            ++generation;
+        this.flushThreshold = config.getFlushThreshold();
+        this.budget = config.getMemTableBudget();
+        this.maxPendingFlushes = config.getMaxPendingFlushes();
+        this.config = config;
+        this.tableCache = new TableCache(config.getMaxOpenFiles());
+        this.rowCache = config.getRowCacheSize() > 0 ? new RowCache(config.getRowCacheSize()) : null;
+        final Manifest.State recorded = Manifest.read(storage);
+        final NavigableMap<Integer, File> files = new TreeMap<>();
+        final List<Integer> logs = new ArrayList<>();
+        try (Stream<Path> list = Files.list(storage.toPath())) {
+            final Iterator<Path> iterator = list.filter(file -> !file.toFile().isDirectory()).iterator();
+            while (iterator.hasNext()) {
+                final Path file = iterator.next();
+                final String fileName = file.getFileName().toString();
+                try {
+                    if (fileName.endsWith(FILE_POSTFIX)) {
+                        files.put(parseNumber(fileName, FILE_POSTFIX), file.toFile());
+                    } else if (fileName.endsWith(WriteAheadLog.FILE_POSTFIX)) {
+                        logs.add(parseNumber(fileName, WriteAheadLog.FILE_POSTFIX));
+                    } else if (fileName.endsWith(TEMP_FILE_POSTFIX)) {
+                        // Unfinished flush or compaction of the storage without manifest
+                        Files.delete(file);
+                    }
+                } catch (NumberFormatException e) {
+                    logger.info("Unexpected name of SSTable file");
+                }
+            }
+        }
+        final NavigableMap<Integer, TableMeta> live = recorded == null ? describe(files) : recorded.tables;
+
+        int generation = logs.isEmpty() ? 0 : Collections.max(logs);
+        int nextFile = files.isEmpty() ? 0 : files.lastKey();
+        for (final Map.Entry<Integer, TableMeta> table : live.entrySet()) {
+            if (!files.containsKey(table.getValue().file)) {
+                throw new IOException("Missing file of SSTable " + table.getKey());
+            }
+            generation = Math.max(generation, table.getKey());
+            nextFile = Math.max(nextFile, table.getValue().file);
+        }
+        ++generation;
+        if (recorded != null && recorded.lastSequence >= 0) {
+            this.sequence = new AtomicLong(recorded.lastSequence);
+        } else if (live.isEmpty() && logs.isEmpty()) {
+            this.sequence = new AtomicLong();
+        } else {
+            // The storage written before the sequence numbers, its versions are milliseconds since the epoch
+            this.sequence = new AtomicLong(System.currentTimeMillis());
+        }
+        this.manifest = Manifest.create(storage, live, nextFile + 1, sequence.get());
+        syncStorage();
+
+        final NavigableMap<Integer, SSTable> ssTables = new TreeMap<>();
+        for (final Map.Entry<Integer, TableMeta> table : live.entrySet()) {
+            ssTables.put(table.getKey(), open(table.getValue()));
+            files.remove(table.getValue().file);
+        }
+        for (final File orphan : files.values()) {
+            // Output of the flush or compaction which wasn't committed, or input of the committed compaction
+            Files.delete(orphan.toPath());
+        }
+        Collections.sort(logs);
+        for (final int gen : logs) {
+            recover(gen, ssTables);
+        }
+        this.visibleSequence = sequence.get();
+        this.tables = new TableSet(MemTable.create(config), new TreeMap<>(), ssTables, generation);
+        this.wal = new WriteAheadLog(storage, generation, config);
+        this.flusher = Executors.newSingleThreadExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "lsm-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.compactionStrategy = config.getCompactionStrategy();
+        this.maxSSTables = config.getMaxSSTables();
+        this.compactor = Executors.newSingleThreadExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "lsm-compact");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduleCompaction();
+    }
+
+    private static int parseNumber(
+            @NotNull final String fileName,
+            @NotNull final String postfix) {
+        return Integer.parseInt(fileName.substring(0, fileName.indexOf(postfix)));
+    }
+
+    /**
+     * Describes the SSTables of the storage written before the manifest was introduced,
+     * when files were named after the generations of the tables.
+     */
+    @NotNull
+    private NavigableMap<Integer, TableMeta> describe(@NotNull final NavigableMap<Integer, File> files)
+            throws IOException {
+        final NavigableMap<Integer, TableMeta> tables = new TreeMap<>();
+        for (final Map.Entry<Integer, File> file : files.entrySet()) {
+            final SSTable ssTable = new SSTable(file.getValue(), config);
+            try {
+                tables.put(file.getKey(), ssTable.describe(file.getKey()));
+            } finally {
+                ssTable.close();
+            }
         }
+        return tables;
+    }
+
+    /**
+     * Flushes mutations of the write-ahead log segment left by a crashed process.
+     */
+    private void recover(
+            final int gen,
+            @NotNull final NavigableMap<Integer, SSTable> ssTables) throws IOException {
+        if (!ssTables.containsKey(gen)) {
+            final MemTable recovered = MemTable.create(config);
+            final long replayed = WriteAheadLog.replay(WriteAheadLog.file(storage, gen), recovered::upsert);
+            sequence.accumulateAndGet(replayed, Math::max);
+            if (recovered.size() > 0) {
+                final TableMeta meta = serialize(recovered.iterator(EMPTY_BUFFER), recovered.size());
+                manifest.apply(Collections.emptySet(), Map.of(gen, meta), sequence.get());
+                ssTables.put(gen, open(meta));
+            }
+        }
+        WriteAheadLog.delete(storage, gen);
     }
 
     @NotNull
     @Override
     public Iterator<Record> iterator(@NotNull final ByteBuffer from) throws IOException {
-        final Iterator<Cell> freshElements = freshCellIterator(from);
-        final Iterator<Cell> aliveElements = Iterators
-                .filter(freshElements, element -> !element.getValue().isTombstone());
+        return visibleRange(from, null, false);
+    }
 
-        return Iterators.transform(aliveElements, element -> Record.of(element.getKey(), element.getValue().getData()));
+    /**
+     * Iterates the range with the upper bound pushed down to the tables,
+     * so each of them stops reading as soon as the range ends.
+     */
+    @NotNull
+    @Override
+    public Iterator<Record> range(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) throws IOException {
+        return visibleRange(from, to, false);
+    }
+
+    /**
+     * Iterates the range backwards with both bounds pushed down to the tables, the same way as forwards.
+     */
+    @NotNull
+    @Override
+    public Iterator<Record> descendingRange(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) throws IOException {
+        return visibleRange(from, to, true);
     }
 
-    private Iterator<Cell> freshCellIterator(@NotNull final ByteBuffer from) {
-        final List<Iterator<Cell>> iters = new ArrayList<>(ssTables.size() + 1);
-        iters.add(memtable.iterator(from));
-        ssTables.descendingMap().values().forEach(ssTable -> {
+    /**
+     * Iterates the range of the tables seen by a reader, see {@link #lookup(ByteBuffer)}.
+     */
+    @NotNull
+    private Iterator<Record> visibleRange(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to,
+            final boolean descending) throws IOException {
+        while (true) {
+            final TableSet snapshot = tables;
             try {
-                iters.add(ssTable.iterator(from));
+                return range(newestFirst(snapshot, visibleSequence), from, to, descending);
             } catch (IOException e) {
-                logger.info("Something went wrong when in freshCellIterator");
+                if (tables == snapshot) {
+                    throw e;
+                }
+                // Some of the tables were replaced by compaction and closed meanwhile
             }
-        });
+        }
+    }
+
+    @NotNull
+    private static Iterator<Record> range(
+            @NotNull final Collection<? extends Table> newestFirst,
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to,
+            final boolean descending) throws IOException {
+        if (to != null && from.compareTo(to) > 0) {
+            return Iters.empty();
+        }
+        return records(cellIterators(newestFirst, from, to, descending), descending);
+    }
+
+    /**
+     * Merges the cells of the tables into the live records.
+     * @param newestFirst - the iterators of the tables from the newest to the oldest one.
+     * @param descending - whether the tables iterate their keys in descending order.
+     */
+    @NotNull
+    private static Iterator<Record> records(
+            @NotNull final List<Iterator<Cell>> newestFirst,
+            final boolean descending) {
+        final Iterator<Cell> alive = new MergeIterator(newestFirst, true, descending);
+        // Records copy neither the key nor the value, their getters return views
+        return Iterators.transform(alive, cell -> Record.of(cell.key(), cell.getValue().data()));
+    }
+
+    /**
+     * Point lookup, which probes the tables from the newest to the oldest one
+     * and stops at the first version of the key found.
+     * SSTables, which can't contain the key according to their key ranges or Bloom filters, are skipped.
+     * Keys found in the cache of rows aren't looked up at all.
+     */
+    @NotNull
+    @Override
+    public ByteBuffer get(@NotNull final ByteBuffer key) throws IOException, NoSuchElementException {
+        Value value;
+        if (rowCache == null) {
+            value = lookup(key);
+        } else {
+            value = rowCache.get(key);
+            if (value == null) {
+                final long version = rowCache.version(key);
+                value = lookup(key);
+                rowCache.put(key, version, value);
+            }
+        }
+
+        if (value == null || value.isTombstone()) {
+            throw new NoSuchElementException("Not found");
+        }
+        return value.getData();
+    }
+
+    /**
+     * Takes the tables of the storage with the latest visible sequence number, the view reads
+     * the active memory table up to that number, so taking it costs neither a flush nor a wait.
+     * The view keeps the memory tables in memory and the SSTables replaced by compaction open
+     * until it is closed.
+     */
+    @NotNull
+    @Override
+    public Snapshot snapshot() throws IOException {
+        while (true) {
+            final TableSet view = tables;
+            final long last = visibleSequence;
+            final List<SSTable> retained = new ArrayList<>(view.ssTables.size());
+            for (final SSTable ssTable : view.ssTables.values()) {
+                if (!ssTable.retain()) {
+                    break;
+                }
+                retained.add(ssTable);
+            }
+            if (retained.size() == view.ssTables.size()) {
+                final View snapshot = new View(newestFirst(view, last), retained, last);
+                views.add(snapshot);
+                return snapshot;
+            }
+            retained.forEach(SSTable::release);
+            if (tables == view) {
+                throw new IOException("Storage is closed");
+            }
+            // Some of the tables were replaced by compaction and closed meanwhile
+        }
+    }
+
+    /**
+     * Looks the key up in the tables seen by a reader, where the active memory table is read up to
+     * the latest visible mutation. The set of the tables is taken before the sequence number, so the frozen
+     * memory tables and the SSTables hold only the visible mutations, since the writers to a memory table
+     * are done before it is frozen. Should an SSTable be closed by compaction meanwhile, the lookup is
+     * repeated with the tables which replaced it.
+     */
+    @Nullable
+    private Value lookup(@NotNull final ByteBuffer key) throws IOException {
+        while (true) {
+            final TableSet snapshot = tables;
+            final Value value = snapshot.memtable.get(key, visibleSequence);
+            if (value != null) {
+                return value;
+            }
+            final Value flushing = find(snapshot.flushing.descendingMap().values(), key);
+            if (flushing != null) {
+                return flushing;
+            }
+            try {
+                return find(snapshot.ssTables.descendingMap().values(), key);
+            } catch (IOException e) {
+                if (tables == snapshot) {
+                    throw e;
+                }
+                // Some of the tables were replaced by compaction and closed meanwhile
+            }
+        }
+    }
+
+    @Nullable
+    private static Value find(
+            @NotNull final Collection<? extends Table> newestFirst,
+            @NotNull final ByteBuffer key) throws IOException {
+        for (final Table table : newestFirst) {
+            final Value value = table.get(key);
+            if (value != null) {
+                return value;
+            }
+        }
+        return null;
+    }
 
-        final Iterator<Cell> mergedElements = Iterators.mergeSorted(
-                iters,
-                Cell.COMPARATOR
-        );
+    @NotNull
+    private static List<Table> newestFirst(
+            @NotNull final TableSet snapshot,
+            final long maxSequence) {
+        final List<Table> sources = new ArrayList<>(snapshot.flushing.size() + snapshot.ssTables.size() + 1);
+        sources.add(snapshot.memtable.upTo(maxSequence));
+        sources.addAll(snapshot.flushing.descendingMap().values());
+        sources.addAll(snapshot.ssTables.descendingMap().values());
+        return sources;
+    }
 
-        return Iters.collapseEquals(mergedElements, Cell::getKey);
+    private static List<Iterator<Cell>> cellIterators(
+            @NotNull final Collection<? extends Table> newestFirst,
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to,
+            final boolean descending) throws IOException {
+        final List<Iterator<Cell>> iters = new ArrayList<>(newestFirst.size());
+        for (final Table table : newestFirst) {
+            iters.add(descending ? table.descendingIterator(from, to) : table.iterator(from, to));
+        }
+        return iters;
     }
 
-    private File serialize(final Iterator<Cell> iterator) throws IOException {
-        final File file = new File(storage, generation + TEMP_FILE_POSTFIX);
-        file.createNewFile();
-        SSTable.serialize(file, iterator);
-        final String newFileName = generation + FILE_POSTFIX;
-        final File dst = new File(storage, newFileName);
-        Files.move(file.toPath(), dst.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    /**
+     * Writes the cells to a new SSTable file, which is an orphan until it is committed to the manifest.
+     * @param expectedCells - the upper bound of the amount of the cells.
+     */
+    @NotNull
+    private TableMeta serialize(
+            @NotNull final Iterator<Cell> iterator,
+            final long expectedCells) throws IOException {
+        final int fileNumber = manifest.nextFile();
+        final TableMeta meta = SSTable.serialize(file(fileNumber), fileNumber, iterator, expectedCells, config);
+        syncStorage();
+        return meta;
+    }
 
-        return dst;
+    @NotNull
+    private File file(final int fileNumber) {
+        return new File(storage, fileNumber + FILE_POSTFIX);
+    }
+
+    @NotNull
+    private SSTable open(@NotNull final TableMeta meta) {
+        return new SSTable(file(meta.file), meta, config, tableCache);
+    }
+
+    /**
+     * Makes new files in the storage durable before the manifest refers to them.
+     */
+    private void syncStorage() {
+        try (FileChannel directory = FileChannel.open(storage.toPath(), StandardOpenOption.READ)) {
+            directory.force(true);
+        } catch (IOException e) {
+            // Some platforms can't sync directories
+            logger.fine("Unable to sync storage directory");
+        }
+    }
+
+    /**
+     * Memory occupied by the block indexes of the open SSTables.
+     */
+    public long indexSizeInBytes() {
+        long size = 0;
+        for (final SSTable ssTable : tables.ssTables.values()) {
+            size += ssTable.indexSizeInBytes();
+        }
+        return size;
     }
 
     @Override
     public void remove(@NotNull final ByteBuffer key) throws IOException {
-        memtable.remove(key);
-        if (memtable.getSizeInByte() > flushThreshold) {
-            flush();
-        }
+        apply(new WriteBatch().remove(key));
     }
 
     @Override
     public void close() throws IOException {
+        final MemTable memtable = tables.memtable;
         if (memtable.size() > 0) {
-            flush();
+            scheduleFlush(memtable);
+        }
+        flusher.shutdown();
+        synchronized (this) {
+            // Stops retrying the failed flush, it is made once more below
+            notifyAll();
+        }
+        try {
+            while (!flusher.awaitTermination(1, TimeUnit.MINUTES)) {
+                logger.info("Waiting for memory tables to be flushed");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while flushing memory tables");
         }
-        ssTables.values().forEach(Table::close);
+        for (final var frozen : tables.flushing.entrySet()) {
+            flush(frozen.getKey(), frozen.getValue());
+        }
+        synchronized (this) {
+            compactor.shutdown();
+        }
+        try {
+            while (!compactor.awaitTermination(1, TimeUnit.MINUTES)) {
+                logger.info("Waiting for compaction to complete");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for compaction");
+        }
+        wal.close();
+        manifest.close();
+        views.forEach(View::close);
+        tables.ssTables.values().forEach(Table::close);
     }
 
+    /**
+     * Merges all the SSTables into one in the background, reads and writes go on meanwhile.
+     * The memory table is flushed first, so the compaction covers everything written before the call.
+     */
     @Override
     public void compact() throws IOException {
-        final Iterator<Cell> freshElements = freshCellIterator(EMPTY_BUFFER);
-        final File dst = serialize(freshElements);
-
-        try (Stream<Path> files = Files.list(storage.toPath())) {
-            files.filter(f -> !f.getFileName().toFile().toString().equals(dst.getName()))
-                    .forEach(f -> {
-                        try {
-                            Files.delete(f);
-                        } catch (IOException e) {
-                            logger.info("Unable to delete file: " + f.getFileName().toFile().toString());
-                        }
-                    });
-        }
-        ssTables.clear();
-        ssTables.put(generation, new SSTable(dst));
-        ++generation;
-        memtable = new MemTable();
+        final MemTable memtable = tables.memtable;
+        if (memtable.size() > 0) {
+            scheduleFlush(memtable);
+        }
+        synchronized (this) {
+            if (fullCompactionScheduled || compactor.isShutdown()) {
+                return;
+            }
+            fullCompactionScheduled = true;
+            executeCompaction(() -> {
+                compactAll();
+                return null;
+            });
+        }
     }
 
-        @Override
+    /**
+     * Merges the snapshot of the SSTables as soon as the memory tables frozen so far are flushed.
+     */
+    private void compactAll() throws IOException {
+        final NavigableMap<Integer, SSTable> snapshot;
+        synchronized (this) {
+            fullCompactionScheduled = false;
+            final int lastFrozen = tables.generation - 1;
+            try {
+                while (!tables.flushing.headMap(lastFrozen, true).isEmpty()) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for memory tables to be flushed");
+            }
+            snapshot = tables.ssTables.headMap(lastFrozen, true);
+        }
+        if (snapshot.size() > 1) {
+            compact(snapshot);
+        }
+    }
+
+    /**
+     * Asks the background thread to check whether the SSTables need to be compacted.
+     */
+    private synchronized void scheduleCompaction() {
+        if (compactionScheduled || compactor.isShutdown()) {
+            return;
+        }
+        compactionScheduled = true;
+        executeCompaction(() -> {
+            synchronized (this) {
+                compactionScheduled = false;
+            }
+            compactAutomatically();
+            return null;
+        });
+    }
+
+    /**
+     * Runs the compaction on the background thread, so compactions never overlap.
+     */
+    private void executeCompaction(@NotNull final Callable<Void> compaction) {
+        assert Thread.holdsLock(this);
+        compactor.execute(() -> {
+            synchronized (this) {
+                compacting = true;
+            }
+            try {
+                compaction.call();
+            } catch (Exception e) {
+                logger.log(Level.SEVERE, "Background compaction failed", e);
+            } finally {
+                synchronized (this) {
+                    compacting = false;
+                    notifyAll();
+                }
+            }
+        });
+    }
+
+    /**
+     * Merges the runs of SSTables chosen by the compaction strategy until it is satisfied.
+     */
+    private void compactAutomatically() throws IOException {
+        while (!compactor.isShutdown()) {
+            final NavigableMap<Integer, SSTable> newestFirst = tables.ssTables.descendingMap();
+            final List<Integer> generations = new ArrayList<>(newestFirst.keySet());
+            final List<Long> sizes = new ArrayList<>(generations.size());
+            newestFirst.values().forEach(table -> sizes.add(table.getSizeInByte()));
+
+            final Range<Integer> picked = compactionStrategy.pick(Collections.unmodifiableList(sizes));
+            if (picked == null) {
+                return;
+            }
+            final Range<Integer> run = picked.canonical(DiscreteDomain.integers());
+            if (!Range.closedOpen(0, sizes.size()).encloses(run) || run.isEmpty()
+                    || run.upperEndpoint() - run.lowerEndpoint() < 2) {
+                logger.severe("Compaction strategy picked invalid run " + picked + " of " + sizes.size() + " tables");
+                return;
+            }
+            final int newest = generations.get(run.lowerEndpoint());
+            final int oldest = generations.get(run.upperEndpoint() - 1);
+            compact(tables.ssTables.subMap(oldest, true, newest, true));
+        }
+    }
+
+    /**
+     * Merges adjacent SSTables into a new file, which takes the generation of the newest input.
+     * The merged table replaces the inputs with a single manifest edit, their files are removed afterwards.
+     * Should the process crash before the edit is committed, the merged file is an orphan removed on open.
+     * The inputs read by open snapshots keep their files until the snapshots are closed,
+     * the others are closed and removed at once.
+     */
+    private void compact(@NotNull final NavigableMap<Integer, SSTable> inputs) throws IOException {
+        final int gen = inputs.lastKey();
+        long cells = 0;
+        for (final SSTable input : inputs.values()) {
+            cells += input.size();
+        }
+        final TableMeta meta = serialize(
+                new MergeIterator(cellIterators(inputs.descendingMap().values(), EMPTY_BUFFER, null, false), false),
+                cells);
+        manifest.apply(inputs.keySet(), Map.of(gen, meta), sequence.get());
+        final SSTable compacted = open(meta);
+        synchronized (this) {
+            tables = tables.compacted(inputs.keySet(), gen, compacted);
+            notifyAll();
+        }
+
+        inputs.values().forEach(SSTable::retire);
+    }
+
+    @Override
     public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) throws IOException {
-        memtable.upsert(key, value);
-        if (memtable.getSizeInByte() >= flushThreshold) {
-            flush();
+        apply(new WriteBatch().upsert(key, value));
+    }
+
+    /**
+     * Logs the mutations of the batch as a single record and applies them to the same memory table,
+     * so they all survive a crash or none of them does.
+     * The mutations take consecutive sequence numbers in the order of the batch,
+     * readers see either all of them or none, see {@link #publish(long, long)}.
+     */
+    @Override
+    public void apply(@NotNull final WriteBatch batch) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        checkFlushFailure();
+        final List<Cell> cells = new ArrayList<>(batch.size());
+        final MemTable memtable;
+        lock.readLock().lock();
+        try {
+            // Numbered under the lock, so the mutations of the older sequence numbers can't land in a newer table
+            final long first = sequence.getAndAdd(batch.size()) + 1;
+            try {
+                for (int i = 0; i < batch.size(); i++) {
+                    final ByteBuffer value = batch.value(i);
+                    final long version = first + i;
+                    cells.add(new Cell(batch.key(i), value == null ? new Value(version) : new Value(version, value)));
+                }
+                wal.append(cells);
+                memtable = tables.memtable;
+                long growth = 0;
+                for (final Cell cell : cells) {
+                    growth += memtable.upsert(cell.key(), cell.getValue());
+                }
+                if (budget != null) {
+                    budget.reserve(growth);
+                }
+            } finally {
+                // Still under the lock, so the memory table is frozen only once its mutations are visible
+                publish(first, first + batch.size() - 1);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (rowCache != null) {
+            for (final Cell cell : cells) {
+                rowCache.invalidate(cell.key());
+            }
+        }
+        if (isFull(memtable)) {
+            scheduleFlush(memtable);
         }
     }
 
-    private void flush() throws IOException {
-        final File dst = serialize(memtable.iterator(EMPTY_BUFFER));
-        ++generation;
-        ssTables.put(generation, new SSTable(dst));
-        memtable.close();
+    /**
+     * Makes the mutations of the batch visible to the readers once all the older batches are visible,
+     * so the batches become visible in the order of their sequence numbers.
+     * @param first - the sequence number of the first mutation of the batch.
+     * @param last - the sequence number of the last mutation of the batch.
+     */
+    private void publish(
+            final long first,
+            final long last) {
+        boolean interrupted = false;
+        synchronized (visibility) {
+            while (visibleSequence != first - 1) {
+                try {
+                    visibility.wait();
+                } catch (InterruptedException e) {
+                    // The older batches are being applied, they are published shortly
+                    interrupted = true;
+                }
+            }
+            visibleSequence = last;
+            visibility.notifyAll();
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Checks whether the memory table reached the flush threshold, or the memory tables sharing the budget
+     * exceed it and the table is large enough to be worth flushing.
+     */
+    private boolean isFull(@NotNull final MemTable memtable) {
+        final long size = memtable.getSizeInByte();
+        return size >= flushThreshold
+                || (budget != null && budget.isExceeded() && size >= budget.getLimit() / MIN_BUDGET_SHARE);
+    }
+
+    /**
+     * Freezes the active memory table and hands it over to the background flusher.
+     * Blocks while too many frozen memory tables are waiting to be flushed.
+     * @param full - the memory table to freeze, nothing is done if it is already frozen by another writer.
+     */
+    private synchronized void scheduleFlush(@NotNull final MemTable full) throws IOException {
+        if (tables.memtable != full) {
+            return;
+        }
+        awaitFlushCapacity();
+        final TableSet current;
+        lock.writeLock().lock();
+        try {
+            current = tables;
+            if (current.memtable != full) {
+                return;
+            }
+            tables = current.freeze(MemTable.create(config));
+            wal.rotate(tables.generation);
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        flushInBackground(current.generation, current.memtable);
+    }
+
+    /**
+     * Flushes the frozen memory table on the background thread.
+     */
+    private void flushInBackground(
+            final int gen,
+            @NotNull final Table frozen) {
+        assert Thread.holdsLock(this);
+        ++pendingFlushes;
+        flusher.execute(() -> {
+            try {
+                if (flushFailure == null || !flusher.isShutdown()) {
+                    flushUntilDone(gen, frozen);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                synchronized (this) {
+                    --pendingFlushes;
+                    notifyAll();
+                }
+            }
+        });
+    }
+
+    /**
+     * Retries the flush until it succeeds, so the newer memory tables queued behind aren't flushed before it
+     * and the readers never find the older frozen table ahead of the newer SSTables.
+     * Gives up once the storage is closed, leaving the table to the flush made by {@link #close()}.
+     */
+    private void flushUntilDone(
+            final int gen,
+            @NotNull final Table frozen) throws InterruptedException {
+        long delay = MIN_FLUSH_RETRY_MILLIS;
+        while (true) {
+            try {
+                flush(gen, frozen);
+                synchronized (this) {
+                    flushFailure = null;
+                    notifyAll();
+                }
+                return;
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Unable to flush memory table " + gen + ", retrying in " + delay + " ms", e);
+                synchronized (this) {
+                    flushFailure = e;
+                    notifyAll();
+                    if (flusher.isShutdown()) {
+                        return;
+                    }
+                    wait(delay);
+                }
+            }
+            delay = Math.min(delay * 2, MAX_FLUSH_RETRY_MILLIS);
+        }
+    }
+
+    /**
+     * Refuses the writes while the memory tables can't be flushed, so they don't pile up in memory.
+     */
+    private void checkFlushFailure() throws IOException {
+        final IOException failure = flushFailure;
+        if (failure != null) {
+            throw new IOException("Memory tables can't be flushed", failure);
+        }
+    }
+
+    private void flush(
+            final int gen,
+            @NotNull final Table frozen) throws IOException {
+        final TableMeta meta = serialize(frozen.iterator(EMPTY_BUFFER), frozen.size());
+        manifest.apply(Collections.emptySet(), Map.of(gen, meta), sequence.get());
+        final SSTable ssTable = open(meta);
+        synchronized (this) {
+            tables = tables.flushed(gen, ssTable);
+            notifyAll();
+        }
+        if (budget != null) {
+            budget.release(frozen.getSizeInByte());
+        }
+        WriteAheadLog.delete(storage, gen);
+        scheduleCompaction();
+    }
+
+    /**
+     * Waits until there are not too many frozen memory tables waiting for the flush,
+     * nor too many SSTables while the background compaction is merging them.
+     * Fails instead if the memory tables can't be flushed.
+     */
+    private void awaitFlushCapacity() throws IOException {
+        assert Thread.holdsLock(this);
+        try {
+            while (pendingFlushes >= maxPendingFlushes
+                    || (compacting && tables.ssTables.size() + pendingFlushes >= maxSSTables)) {
+                checkFlushFailure();
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for memory tables to be flushed");
+        }
+    }
+
+    /**
+     * Consistent view of the storage made of the immutable tables and the prefix of the active memory table.
+     */
+    private final class View implements Snapshot {
+        private final long sequence;
+        /** The SSTables of the view, which are kept open until it is closed. */
+        private final List<SSTable> retained;
+        @Nullable
+        private volatile List<Table> newestFirst;
+
+        /**
+         * Creates the view of the tables.
+         * @param newestFirst - the tables from the newest to the oldest one.
+         * @param retained - the SSTables of the view, already retained for it.
+         * @param sequence - the sequence number of the latest mutation seen through the view.
+         */
+        View(
+                @NotNull final List<Table> newestFirst,
+                @NotNull final List<SSTable> retained,
+                final long sequence) {
+            this.newestFirst = newestFirst;
+            this.retained = retained;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public long getSequence() {
+            return sequence;
+        }
+
+        @NotNull
+        @Override
+        public Iterator<Record> iterator(@NotNull final ByteBuffer from) throws IOException {
+            return LsmDAO.range(tables(), from, null, false);
+        }
+
+        @NotNull
+        @Override
+        public Iterator<Record> range(
+                @NotNull final ByteBuffer from,
+                @Nullable final ByteBuffer to) throws IOException {
+            return LsmDAO.range(tables(), from, to, false);
+        }
+
+        @NotNull
+        @Override
+        public Iterator<Record> descendingRange(
+                @NotNull final ByteBuffer from,
+                @Nullable final ByteBuffer to) throws IOException {
+            return LsmDAO.range(tables(), from, to, true);
+        }
+
+        @NotNull
+        @Override
+        public ByteBuffer get(@NotNull final ByteBuffer key) throws IOException, NoSuchElementException {
+            final Value value = find(tables(), key);
+            if (value == null || value.isTombstone()) {
+                throw new NoSuchElementException("Not found");
+            }
+            return value.getData();
+        }
+
+        @NotNull
+        private List<Table> tables() {
+            final List<Table> current = newestFirst;
+            if (current == null) {
+                throw new IllegalStateException("Snapshot is closed");
+            }
+            return current;
+        }
+
+        /**
+         * Releases the SSTables of the view, the ones replaced by compaction are closed with the last view.
+         */
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (newestFirst == null) {
+                    return;
+                }
+                newestFirst = null;
+            }
+            views.remove(this);
+            retained.forEach(SSTable::release);
+        }
     }
 }
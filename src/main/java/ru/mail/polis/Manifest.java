@@ -0,0 +1,214 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Log of the changes of the SSTable set, so the storage is opened without listing and probing its files.
+ * Each record is {@code [crc][size][edit]}, where an edit removes the tables of the given generations and adds
+ * new ones in one go: {@code [removedCount][generation]...[addedCount][table]...[lastSequence]}, and a table is
+ * {@code [generation][file][sizeInBytes][count][firstKeySize][firstKey][lastKeySize][lastKey]}.
+ * The last sequence number bounds the versions of the tables, edits written before the sequence numbers
+ * were introduced lack it.
+ * An edit is committed once its record is synced, a torn record left by a crash is ignored.
+ * The log is rewritten as a single edit adding all the live tables whenever the storage is opened.
+ */
+final class Manifest implements Closeable {
+
+    static final String FILE_NAME = "MANIFEST";
+
+    private static final Logger logger = Logger.getLogger(Manifest.class.getName());
+    private static final String TEMP_FILE_NAME = FILE_NAME + ".tmp";
+    private static final int HEADER_BYTES = Integer.BYTES * 2;
+
+    private final FileChannel channel;
+    private final CRC32 crc = new CRC32();
+    private int nextFile;
+
+    private Manifest(
+            @NotNull final FileChannel channel,
+            final int nextFile) {
+        this.channel = channel;
+        this.nextFile = nextFile;
+    }
+
+    /**
+     * Live tables of the storage recorded in the manifest.
+     */
+    static final class State {
+        @NotNull
+        final NavigableMap<Integer, TableMeta> tables = new TreeMap<>();
+        /** Greatest sequence number of the versions in the tables, negative if it isn't recorded. */
+        long lastSequence = -1;
+    }
+
+    /**
+     * Reads the live tables from the manifest of the storage.
+     * @return the tables, or null if the storage has no manifest yet.
+     */
+    @Nullable
+    static State read(@NotNull final File storage) throws IOException {
+        final File file = new File(storage, FILE_NAME);
+        if (!file.exists()) {
+            return null;
+        }
+        final State state = new State();
+        final CRC32 checksum = new CRC32();
+        final long fileSize = file.length();
+        try (InputStream input = Files.newInputStream(file.toPath());
+             DataInputStream in = new DataInputStream(new BufferedInputStream(input))) {
+            while (true) {
+                final int crc = in.readInt();
+                final int size = in.readInt();
+                if (size < 0 || size > fileSize) {
+                    logger.info("Corrupted record in manifest");
+                    break;
+                }
+                final byte[] edit = new byte[size];
+                in.readFully(edit);
+                checksum.reset();
+                checksum.update(edit);
+                if ((int) checksum.getValue() != crc) {
+                    logger.info("Corrupted record in manifest");
+                    break;
+                }
+                apply(ByteBuffer.wrap(edit), state);
+            }
+        } catch (EOFException e) {
+            // Torn tail of the last record, the edit is not committed
+        }
+        return state;
+    }
+
+    private static void apply(
+            @NotNull final ByteBuffer edit,
+            @NotNull final State state) {
+        final NavigableMap<Integer, TableMeta> tables = state.tables;
+        final int removed = edit.getInt();
+        for (int i = 0; i < removed; i++) {
+            tables.remove(edit.getInt());
+        }
+        final int added = edit.getInt();
+        for (int i = 0; i < added; i++) {
+            final int gen = edit.getInt();
+            final int file = edit.getInt();
+            final long sizeInBytes = edit.getLong();
+            final int count = edit.getInt();
+            final ByteBuffer firstKey = readKey(edit);
+            final ByteBuffer lastKey = readKey(edit);
+            tables.put(gen, new TableMeta(file, sizeInBytes, count, firstKey, lastKey));
+        }
+        if (edit.remaining() >= Long.BYTES) {
+            state.lastSequence = Math.max(state.lastSequence, edit.getLong());
+        }
+    }
+
+    @NotNull
+    private static ByteBuffer readKey(@NotNull final ByteBuffer edit) {
+        final int size = edit.getInt();
+        final ByteBuffer key = edit.duplicate().limit(edit.position() + size);
+        edit.position(edit.position() + size);
+        return key;
+    }
+
+    /**
+     * Replaces the manifest of the storage with the one holding just the given tables
+     * and opens it for the following edits.
+     * @param tables - the live tables by generation.
+     * @param nextFile - the number to name the next table file after.
+     * @param lastSequence - the greatest sequence number of the versions in the tables.
+     */
+    @NotNull
+    static Manifest create(
+            @NotNull final File storage,
+            @NotNull final NavigableMap<Integer, TableMeta> tables,
+            final int nextFile,
+            final long lastSequence) throws IOException {
+        final File temp = new File(storage, TEMP_FILE_NAME);
+        try (FileChannel channel = FileChannel.open(
+                temp.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            final Manifest snapshot = new Manifest(channel, nextFile);
+            snapshot.apply(Collections.emptySet(), tables, lastSequence);
+        }
+        final File file = new File(storage, FILE_NAME);
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return new Manifest(FileChannel.open(file.toPath(), StandardOpenOption.APPEND), nextFile);
+    }
+
+    /**
+     * Allocates the number to name a new table file after.
+     */
+    synchronized int nextFile() {
+        return nextFile++;
+    }
+
+    /**
+     * Commits the change of the table set.
+     * @param removed - generations of the tables which are gone.
+     * @param added - the new tables by generation, replacing the removed ones of the same generations.
+     * @param lastSequence - the sequence number no less than the ones of the versions in the tables.
+     */
+    synchronized void apply(
+            @NotNull final Collection<Integer> removed,
+            @NotNull final Map<Integer, TableMeta> added,
+            final long lastSequence) throws IOException {
+        int size = Integer.BYTES * (2 + removed.size()) + Long.BYTES;
+        for (final TableMeta table : added.values()) {
+            size += Integer.BYTES * 5 + Long.BYTES + table.firstKey().remaining() + table.lastKey().remaining();
+        }
+        final ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + size);
+        record.position(HEADER_BYTES);
+        record.putInt(removed.size());
+        removed.forEach(record::putInt);
+        record.putInt(added.size());
+        for (final Map.Entry<Integer, TableMeta> entry : added.entrySet()) {
+            final TableMeta table = entry.getValue();
+            record.putInt(entry.getKey())
+                    .putInt(table.file)
+                    .putLong(table.sizeInBytes)
+                    .putInt(table.count)
+                    .putInt(table.firstKey().remaining())
+                    .put(table.firstKey())
+                    .putInt(table.lastKey().remaining())
+                    .put(table.lastKey());
+        }
+        record.putLong(lastSequence);
+        crc.reset();
+        crc.update(record.array(), HEADER_BYTES, size);
+        record.putInt(0, (int) crc.getValue())
+                .putInt(Integer.BYTES, size)
+                .flip();
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+        channel.force(false);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+}
@@ -1,69 +1,172 @@
 package ru.mail.polis;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.nio.ByteBuffer;
 import java.util.Iterator;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class MemTable implements Table {
+/**
+ * Sorted table in memory accepting the writes, which is flushed to an SSTable once it is full.
+ * The table keeps every version of a key until it is dropped, so that the readers of an older
+ * sequence number don't see the mutations applied after it.
+ */
+public abstract class MemTable implements Table {
 
-    private static final int LONG_BYTES = 8;
-
-    private final SortedMap<ByteBuffer, Value> map = new TreeMap<>();
-
-    private int curSizeInBytes;
-
-    public MemTable() {
-        this.curSizeInBytes = 0;
-    }
+    /** Versions of the mutations applied through the table itself rather than by the storage. */
+    private final AtomicLong sequence = new AtomicLong();
 
+    /**
+     * Creates the memory table of the configured kind.
+     */
     @NotNull
-    @Override
-    public Iterator<Cell> iterator(@NotNull final ByteBuffer from) {
-        return map.tailMap(from)
-                .entrySet()
-                .stream()
-                .map(entry -> new Cell(entry.getKey(), entry.getValue()))
-                .iterator();
+    static MemTable create(@NotNull final LsmConfig config) {
+        if (config.getMemTableAllocation() == LsmConfig.Allocation.OFF_HEAP) {
+            return new ArenaMemTable();
+        }
+        return new SkipListMemTable();
     }
 
+    /**
+     * Inserts or updates the value, versioned by the table itself.
+     * The storage versions the mutations with its own sequence numbers instead.
+     */
     @Override
     public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) {
-        final Value val = map.get(key);
-        if (val == null) {
-            curSizeInBytes += key.remaining() + value.remaining() + LONG_BYTES;
-        } else {
-            curSizeInBytes += value.remaining() - val.getData().remaining();
-        }
-        map.put(key.duplicate(), new Value(System.currentTimeMillis(), value.duplicate()));
+        upsert(key, new Value(sequence.incrementAndGet(), value.duplicate()));
     }
 
     @Override
     public void remove(@NotNull final ByteBuffer key) {
-        final Value value = map.get(key);
-        if (value == null) {
-            curSizeInBytes += key.remaining() + LONG_BYTES;
-        } else if (!value.isTombstone()) {
-            curSizeInBytes -= value.getData().remaining();
-        }
-        map.put(key.duplicate(), new Value(System.currentTimeMillis()));
+        upsert(key, new Value(sequence.incrementAndGet()));
     }
 
+    @NotNull
     @Override
-    public long getSizeInByte() {
-        return curSizeInBytes;
+    public Iterator<Cell> iterator(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) {
+        return iterator(from, to, Long.MAX_VALUE);
     }
 
+    @NotNull
     @Override
-    public void close() {
-        map.clear();
-        curSizeInBytes = 0;
+    public Iterator<Cell> descendingIterator(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) {
+        return descendingIterator(from, to, Long.MAX_VALUE);
     }
 
+    @Nullable
     @Override
-    public int size() {
-        return map.size();
+    public Value get(@NotNull final ByteBuffer key) {
+        return get(key, Long.MAX_VALUE);
+    }
+
+    /**
+     * Iterates the latest versions of the keys from the range not newer than the given sequence number,
+     * the keys having only newer versions are skipped.
+     * @param maxSequence - the sequence number of the latest mutation seen by the iterator.
+     */
+    @NotNull
+    abstract Iterator<Cell> iterator(
+            @NotNull ByteBuffer from,
+            @Nullable ByteBuffer to,
+            long maxSequence);
+
+    /**
+     * Iterates the range in descending order the same way as {@link #iterator(ByteBuffer, ByteBuffer, long)}.
+     */
+    @NotNull
+    abstract Iterator<Cell> descendingIterator(
+            @NotNull ByteBuffer from,
+            @Nullable ByteBuffer to,
+            long maxSequence);
+
+    /**
+     * Looks up the latest version of the key not newer than the given sequence number.
+     * @return the value of the key, possibly a tombstone, or null if the table has no such version.
+     */
+    @Nullable
+    abstract Value get(
+            @NotNull ByteBuffer key,
+            long maxSequence);
+
+    /**
+     * Puts already versioned value, e.g. the one replayed from the write-ahead log.
+     * The versions of a key are kept in the order of their sequence numbers rather than in the order
+     * they are put, so racing writers can't roll the key back.
+     * @return the growth of the memory taken by the table.
+     */
+    abstract long upsert(
+            @NotNull ByteBuffer key,
+            @NotNull Value value);
+
+    /**
+     * Read-only view of the table, which sees the mutations up to the given sequence number only.
+     * @param maxSequence - the sequence number of the latest mutation seen through the view.
+     */
+    @NotNull
+    Table upTo(final long maxSequence) {
+        return new Prefix(maxSequence);
+    }
+
+    private final class Prefix implements Table {
+        private final long maxSequence;
+
+        Prefix(final long maxSequence) {
+            this.maxSequence = maxSequence;
+        }
+
+        @NotNull
+        @Override
+        public Iterator<Cell> iterator(
+                @NotNull final ByteBuffer from,
+                @Nullable final ByteBuffer to) {
+            return MemTable.this.iterator(from, to, maxSequence);
+        }
+
+        @NotNull
+        @Override
+        public Iterator<Cell> descendingIterator(
+                @NotNull final ByteBuffer from,
+                @Nullable final ByteBuffer to) {
+            return MemTable.this.descendingIterator(from, to, maxSequence);
+        }
+
+        @Nullable
+        @Override
+        public Value get(@NotNull final ByteBuffer key) {
+            return MemTable.this.get(key, maxSequence);
+        }
+
+        @Override
+        public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) {
+            throw new UnsupportedOperationException("View of memory table doesn't provide upsert operations!");
+        }
+
+        @Override
+        public void remove(@NotNull final ByteBuffer key) {
+            throw new UnsupportedOperationException("View of memory table doesn't provide remove operations!");
+        }
+
+        @Override
+        public long getSizeInByte() {
+            return MemTable.this.getSizeInByte();
+        }
+
+        @Override
+        public int size() {
+            return MemTable.this.size();
+        }
+
+        /**
+         * The view doesn't own the table, which is dropped by the storage.
+         */
+        @Override
+        public void close() {
+            // Nothing to release
+        }
     }
 }
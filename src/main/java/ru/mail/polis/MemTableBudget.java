@@ -0,0 +1,59 @@
+package ru.mail.polis;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Memory shared by the memory tables of one or several storages, both active and waiting for the flush.
+ * Once the tables exceed the budget, writers flush their active memory tables even if those are below
+ * the flush threshold, so the heap taken by the tables is bounded as a whole rather than per table.
+ */
+public final class MemTableBudget {
+
+    private final long limit;
+    private final AtomicLong used = new AtomicLong();
+
+    /**
+     * Creates the budget.
+     * @param limit - amount of bytes the memory tables may take.
+     */
+    public MemTableBudget(final long limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Memory table budget must be positive: " + limit);
+        }
+        this.limit = limit;
+    }
+
+    /**
+     * Creates the budget of the share of the maximum heap size.
+     * @param fraction - the share of the heap, from 0 to 1.
+     */
+    public static MemTableBudget ofHeap(final double fraction) {
+        if (fraction <= 0 || fraction > 1) {
+            throw new IllegalArgumentException("Share of the heap must be in (0, 1]: " + fraction);
+        }
+        return new MemTableBudget((long) (Runtime.getRuntime().maxMemory() * fraction));
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    /**
+     * Amount of bytes taken by the memory tables.
+     */
+    public long getUsed() {
+        return used.get();
+    }
+
+    boolean isExceeded() {
+        return used.get() >= limit;
+    }
+
+    void reserve(final long bytes) {
+        used.addAndGet(bytes);
+    }
+
+    void release(final long bytes) {
+        used.addAndGet(-bytes);
+    }
+}
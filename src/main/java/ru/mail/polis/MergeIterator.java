@@ -0,0 +1,155 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Merges sorted cells of several tables, returning the newest version of each key only.
+ * The tables are kept in a binary min-heap ordered by their current keys and then by recency,
+ * so the first cell of a key taken from the heap is its newest version and the rest are skipped
+ * on the same pass. The merge allocates nothing per cell.
+ * Tables iterated in descending order are merged the same way by a max-heap of the keys.
+ */
+final class MergeIterator implements Iterator<Cell> {
+
+    private final Source[] heap;
+    private final boolean skipTombstones;
+    /** 1 if the keys ascend, -1 if they descend. */
+    private final int order;
+    private int size;
+    @Nullable
+    private Cell next;
+
+    /**
+     * Merges the cells of the tables.
+     * @param newestFirst - iterators of the tables from the newest to the oldest one.
+     * @param skipTombstones - whether the keys removed by their newest versions are skipped.
+     */
+    MergeIterator(
+            @NotNull final List<Iterator<Cell>> newestFirst,
+            final boolean skipTombstones) {
+        this(newestFirst, skipTombstones, false);
+    }
+
+    /**
+     * Merges the cells of the tables.
+     * @param newestFirst - iterators of the tables from the newest to the oldest one.
+     * @param skipTombstones - whether the keys removed by their newest versions are skipped.
+     * @param descending - whether the tables iterate their keys in descending order.
+     */
+    MergeIterator(
+            @NotNull final List<Iterator<Cell>> newestFirst,
+            final boolean skipTombstones,
+            final boolean descending) {
+        this.heap = new Source[newestFirst.size()];
+        this.skipTombstones = skipTombstones;
+        this.order = descending ? -1 : 1;
+        for (int i = 0; i < newestFirst.size(); i++) {
+            final Iterator<Cell> cells = newestFirst.get(i);
+            if (cells.hasNext()) {
+                heap[size++] = new Source(cells, i);
+            }
+        }
+        for (int i = size / 2 - 1; i >= 0; i--) {
+            siftDown(i);
+        }
+        next = advance();
+    }
+
+    @Override
+    public boolean hasNext() {
+        return next != null;
+    }
+
+    @Override
+    public Cell next() {
+        final Cell result = next;
+        if (result == null) {
+            throw new NoSuchElementException();
+        }
+        next = advance();
+        return result;
+    }
+
+    @Nullable
+    private Cell advance() {
+        while (size > 0) {
+            final Cell cell = heap[0].head;
+            pop();
+            // Older versions of the key
+            while (size > 0 && heap[0].head.key().equals(cell.key())) {
+                pop();
+            }
+            if (!skipTombstones || !cell.getValue().isTombstone()) {
+                return cell;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Moves the top table to its next cell, dropping the table once it is exhausted.
+     */
+    private void pop() {
+        final Source top = heap[0];
+        if (top.cells.hasNext()) {
+            top.head = top.cells.next();
+        } else {
+            heap[0] = heap[--size];
+            heap[size] = null;
+        }
+        if (size > 0) {
+            siftDown(0);
+        }
+    }
+
+    private void siftDown(final int from) {
+        final Source source = heap[from];
+        int position = from;
+        while (true) {
+            int child = 2 * position + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && heap[child + 1].isBefore(heap[child], order)) {
+                child++;
+            }
+            if (!heap[child].isBefore(source, order)) {
+                break;
+            }
+            heap[position] = heap[child];
+            position = child;
+        }
+        heap[position] = source;
+    }
+
+    private static final class Source {
+        private final Iterator<Cell> cells;
+        /** Position of the table from the newest one. */
+        private final int age;
+        private Cell head;
+
+        Source(
+                @NotNull final Iterator<Cell> cells,
+                final int age) {
+            this.cells = cells;
+            this.age = age;
+            this.head = cells.next();
+        }
+
+        /**
+         * Checks whether the table comes first in the merge.
+         * @param order - 1 if the keys ascend, -1 if they descend.
+         */
+        boolean isBefore(
+                @NotNull final Source other,
+                final int order) {
+            final int cmp = order * head.key().compareTo(other.head.key());
+            return cmp < 0 || (cmp == 0 && age < other.age);
+        }
+    }
+}
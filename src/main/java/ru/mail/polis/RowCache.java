@@ -0,0 +1,122 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Latest values of the recently looked up keys, including the absent ones, so hot keys are read
+ * without probing the tables. The cache is bounded by the bytes of the keys and values and evicts
+ * the least recently used ones. Keys and values are copied to the heap, so that a cached row
+ * takes no more memory than it is accounted for.
+ * Writers invalidate the key once the mutation is applied. A lookup caches the value it resolved only if
+ * no mutation of a key of the same stripe was applied since the lookup started, so that a value resolved
+ * before a concurrent mutation is never cached after the mutation invalidated the key.
+ */
+final class RowCache {
+
+    /** Bookkeeping of an entry on top of the key and value bytes. */
+    private static final int ENTRY_OVERHEAD = 160;
+    private static final int STRIPES = 1024;
+    /** Cached absence of the key. */
+    private static final Value ABSENT = new Value(Long.MAX_VALUE);
+
+    private final long capacity;
+    private final Map<ByteBuffer, Value> rows = new LinkedHashMap<>(16, 0.75f, true);
+    /** Amount of mutations applied to the keys of each stripe. */
+    private final long[] versions = new long[STRIPES];
+    private long sizeInBytes;
+
+    /**
+     * Creates the cache.
+     * @param capacity - amount of bytes the cached rows may take.
+     */
+    RowCache(final long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Version of the key taken before it is resolved, see {@link #put}.
+     */
+    synchronized long version(@NotNull final ByteBuffer key) {
+        return versions[stripe(key)];
+    }
+
+    /**
+     * The cached value of the key.
+     * @return null if the key isn't cached, a tombstone if it is cached as absent.
+     */
+    @Nullable
+    synchronized Value get(@NotNull final ByteBuffer key) {
+        return rows.get(key);
+    }
+
+    /**
+     * Caches the value resolved by the lookup unless the key may have been changed since.
+     * @param version - the version of the key taken before the lookup.
+     * @param value - the latest value of the key, null if it is absent.
+     */
+    void put(
+            @NotNull final ByteBuffer key,
+            final long version,
+            @Nullable final Value value) {
+        final Value row = value == null || value.isTombstone() ? ABSENT : value;
+        final long size = sizeOf(key, row);
+        if (size > capacity) {
+            return;
+        }
+        final ByteBuffer copy = copy(key);
+        // The value may be a slice of a memtable chunk, a mapped file or a block, which it would retain
+        final Value cached = row == ABSENT ? ABSENT : new Value(row.getSequence(), copy(row.getData()));
+        synchronized (this) {
+            if (versions[stripe(key)] != version) {
+                return;
+            }
+            final Value previous = rows.put(copy, cached);
+            if (previous != null) {
+                sizeInBytes -= sizeOf(copy, previous);
+            }
+            sizeInBytes += size;
+            final Iterator<Map.Entry<ByteBuffer, Value>> eldest = rows.entrySet().iterator();
+            while (sizeInBytes > capacity) {
+                final Map.Entry<ByteBuffer, Value> entry = eldest.next();
+                sizeInBytes -= sizeOf(entry.getKey(), entry.getValue());
+                eldest.remove();
+            }
+        }
+    }
+
+    /**
+     * Drops the key after a mutation of it is applied.
+     */
+    synchronized void invalidate(@NotNull final ByteBuffer key) {
+        versions[stripe(key)]++;
+        final Value previous = rows.remove(key);
+        if (previous != null) {
+            sizeInBytes -= sizeOf(key, previous);
+        }
+    }
+
+    synchronized long sizeInBytes() {
+        return sizeInBytes;
+    }
+
+    @NotNull
+    private static ByteBuffer copy(@NotNull final ByteBuffer buffer) {
+        return ByteBuffer.allocate(buffer.remaining()).put(buffer.duplicate()).flip();
+    }
+
+    private static int stripe(@NotNull final ByteBuffer key) {
+        return key.hashCode() & (STRIPES - 1);
+    }
+
+    private static long sizeOf(
+            @NotNull final ByteBuffer key,
+            @NotNull final Value value) {
+        return (long) ENTRY_OVERHEAD + key.remaining() + (value.isTombstone() ? 0 : value.getData().remaining());
+    }
+}
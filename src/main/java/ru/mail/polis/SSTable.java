@@ -1,41 +1,291 @@
 package ru.mail.polis;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.ref.Cleaner;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.StandardOpenOption;
-import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
-
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Sorted immutable table on disk.
+ * The file is a run of blocks followed by the block index, the Bloom filter words and the footer
+ * {@code [indexOffset][blocks][count][maxSequence][bloomWords][bloomHashes][version][magic]}.
+ * See {@link Block} and {@link BlockIndex} for their layout, blocks may be deflated.
+ * Legacy files are a run of {@code [keySize][key][timestamp][valueSize][value]} cells followed by
+ * the int offsets of the cells and the count of the cells, they have no Bloom filter and are searched
+ * through the offsets.
+ * Tables known from the {@link Manifest} are opened on demand and closed by the {@link TableCache},
+ * their blocks found by lookups are kept in the {@link BlockCache}.
+ */
 public class SSTable implements Table {
 
+    static final long MAGIC = 0x4C534D5353544142L;
+    static final int VERSION = 2;
+    static final int FOOTER_BYTES = Integer.BYTES * 5 + Long.BYTES * 3;
+
     private static final Logger logger = Logger.getLogger(LsmDAO.class.getName());
+    private static final Cleaner CLEANER = Cleaner.create();
     private static final int INT_BYTES = 4;
     private static final int LONG_BYTES = 8;
+    /** Version and magic ending the footers of all the versions. */
+    private static final int TRAILER_BYTES = INT_BYTES + LONG_BYTES;
+    private static final ByteBuffer EMPTY_KEY = ByteBuffer.allocate(0);
 
-    private final FileChannel fileChannel;
-    private final int numOfElements;
-    private final int shiftToOffsetsArray;
+    @NotNull
+    private final File file;
+    @NotNull
+    private final LsmConfig config;
+    @Nullable
+    private final TableMeta meta;
+    @Nullable
+    private final TableCache cache;
+    /** The handle held by the table itself while it is opened directly. */
+    @Nullable
+    private volatile Handle pinned;
+    /** Amount of the open snapshots reading the table. */
+    private int snapshots;
+    private boolean retired;
+    private boolean closed;
+
+    /**
+     * Opens SSTable stored in the file, the file stays open until the table is closed.
+     * @param file - the file with serialized SSTable.
+     * @param config - read options of the table.
+     */
+    SSTable(
+            @NotNull final File file,
+            @NotNull final LsmConfig config) throws IOException {
+        this.file = file;
+        this.config = config;
+        this.meta = null;
+        this.cache = null;
+        this.pinned = new Handle();
+    }
 
-    SSTable(@NotNull final File file) throws IOException {
-        fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
-        final int fileSize = (int)fileChannel.size();
+    /**
+     * SSTable known from the manifest, the file is opened on demand and kept in the cache of open tables.
+     * @param file - the file with serialized SSTable.
+     * @param meta - the summary of the table.
+     * @param config - read options of the table.
+     * @param cache - the open tables of the storage.
+     */
+    SSTable(
+            @NotNull final File file,
+            @NotNull final TableMeta meta,
+            @NotNull final LsmConfig config,
+            @NotNull final TableCache cache) {
+        this.file = file;
+        this.config = config;
+        this.meta = meta;
+        this.cache = cache;
+    }
 
-        final ByteBuffer offsetBuf = ByteBuffer.allocate(INT_BYTES);
-        fileChannel.read(offsetBuf, fileSize - INT_BYTES);
-        numOfElements = offsetBuf.flip().getInt();
-        shiftToOffsetsArray = fileSize - INT_BYTES * (1 + numOfElements);
+    @NotNull
+    File file() {
+        return file;
     }
 
+    /**
+     * Opens the file of the table, the handle is referenced once by the caller.
+     */
     @NotNull
+    Handle open() throws IOException {
+        return new Handle();
+    }
+
+    /**
+     * Takes a reference to the open file of the table, the caller releases it.
+     */
+    @NotNull
+    private Handle acquire() throws IOException {
+        final Handle handle = pinned;
+        if (handle != null && handle.retain()) {
+            return handle;
+        }
+        synchronized (this) {
+            final Handle current = pinned;
+            if (current != null) {
+                if (current.retain()) {
+                    return current;
+                }
+                throw new IOException("SSTable " + file.getName() + " is closed");
+            }
+            if (cache == null || closed) {
+                throw new IOException("SSTable " + file.getName() + " is closed");
+            }
+            return cache.acquire(this);
+        }
+    }
+
+    /**
+     * Takes a reference to the table for the snapshot reading it, see {@link #retire()}.
+     * @return false if the table is already closed.
+     */
+    synchronized boolean retain() {
+        if (closed) {
+            return false;
+        }
+        snapshots++;
+        return true;
+    }
+
+    /**
+     * Releases the reference taken by the snapshot, the retired table is removed with the last one.
+     */
+    synchronized void release() {
+        assert snapshots > 0;
+        if (--snapshots == 0 && retired) {
+            remove();
+        }
+    }
+
+    /**
+     * Closes the table, which is replaced by compaction, and removes its file unless it is still read
+     * by snapshots. Otherwise the table stays readable until the last of the snapshots is closed.
+     */
+    synchronized void retire() {
+        retired = true;
+        if (snapshots == 0) {
+            remove();
+        }
+    }
+
+    private void remove() {
+        close();
+        try {
+            Files.delete(file.toPath());
+        } catch (IOException e) {
+            logger.info("Unable to delete file: " + file.getName());
+        }
+    }
+
+    /**
+     * The cache of the blocks unless the table is opened directly.
+     */
+    @Nullable
+    private BlockCache blockCache() {
+        return cache == null || pinned != null ? null : config.getBlockCache();
+    }
+
+    private void invalidateBlocks() {
+        final BlockCache blockCache = config.getBlockCache();
+        if (blockCache != null) {
+            blockCache.invalidate(this);
+        }
+    }
+
+    /**
+     * Describes the table for the manifest.
+     * @param fileNumber - the number the file of the table is named after.
+     */
+    @NotNull
+    TableMeta describe(final int fileNumber) throws IOException {
+        final Handle handle = acquire();
+        try {
+            return handle.describe(fileNumber);
+        } finally {
+            handle.release();
+        }
+    }
+
+    /**
+     * Closes the channel of the handle which is no longer reachable.
+     */
+    @NotNull
+    private static Runnable closer(@NotNull final FileChannel fileChannel) {
+        return () -> {
+            try {
+                fileChannel.close();
+            } catch (IOException e) {
+                logger.warning("The error happened when the file channel was closed");
+            }
+        };
+    }
+
+    /**
+     * The position of the key found by a binary search, or the position the absent key would be inserted at.
+     */
+    private static int insertionPoint(final int found) {
+        return found >= 0 ? found : -found - 1;
+    }
+
+    @Nullable
+    private static ByteBuffer map(@NotNull final FileChannel fileChannel) throws IOException {
+        final long fileSize = fileChannel.size();
+        if (fileSize > Integer.MAX_VALUE) {
+            return null;
+        }
+        try {
+            return fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+        } catch (IOException e) {
+            logger.info("Unable to map SSTable, falling back to file channel reads");
+            return null;
+        }
+    }
+
+    /**
+     * Iterates the range, the file isn't even opened if the key range of the table tells the range misses it.
+     */
+    @NotNull
+    @Override
+    public Iterator<Cell> iterator(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) throws IOException {
+        if (meta != null && !meta.overlaps(from, to)) {
+            return Iters.empty();
+        }
+        final Handle handle = acquire();
+        try {
+            return handle.iterator(from, to);
+        } catch (IOException | RuntimeException e) {
+            handle.release();
+            throw e;
+        }
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> descendingIterator(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) throws IOException {
+        if (meta != null && !meta.overlaps(from, to)) {
+            return Iters.empty();
+        }
+        final Handle handle = acquire();
+        try {
+            return handle.descendingIterator(from, to);
+        } catch (IOException | RuntimeException e) {
+            handle.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Looks up the key unless the key range or the Bloom filter of the table tell it's absent.
+     */
+    @Nullable
     @Override
-    public Iterator<Cell> iterator(@NotNull final ByteBuffer from) throws IOException {
-        return new SSTableIterator(from);
+    public Value get(@NotNull final ByteBuffer key) throws IOException {
+        if (meta != null && !meta.covers(key)) {
+            return null;
+        }
+        final Handle handle = acquire();
+        try {
+            return handle.bloom.mightContain(key) ? handle.get(key) : null;
+        } finally {
+            handle.release();
+        }
     }
 
     @Override
@@ -48,145 +298,612 @@ public class SSTable implements Table {
         throw new UnsupportedOperationException("SSTable doesn't provide remove operations!");
     }
 
+    /**
+     * Size of the table file.
+     */
     @Override
     public long getSizeInByte() {
-        throw new UnsupportedOperationException("SSTable doesn't provide getSizeInByte operations!");
+        return meta == null ? pinned.sizeInBytes : meta.sizeInBytes;
+    }
+
+    /**
+     * Memory occupied by the block index of the table, none while the table is closed or has no index.
+     */
+    long indexSizeInBytes() {
+        Handle handle = pinned;
+        if (handle == null && cache != null) {
+            handle = cache.peek(this);
+        }
+        return handle == null ? 0 : handle.indexSizeInBytes();
     }
 
     @Override
     public int size() {
-        return numOfElements;
+        return meta == null ? pinned.numOfElements : meta.count;
     }
 
+    /**
+     * Releases the file of the table, iterators still reading it keep it open until they are exhausted.
+     * The table can't be read afterwards.
+     */
     @Override
-    public void close() {
-        try {
-            fileChannel.close();
-        } catch (IOException e) {
-            logger.warning("The error happened when the file channel was closed");
+    public synchronized void close() {
+        closed = true;
+        if (cache != null) {
+            cache.invalidate(this);
+        }
+        invalidateBlocks();
+        final Handle handle = pinned;
+        if (handle != null) {
+            pinned = null;
+            handle.release();
         }
     }
 
-    static void serialize(
+    /**
+     * Writes the cells to the file as SSTable.
+     * @param fileNumber - the number the file is named after.
+     * @param expectedCells - amount of the cells to size the Bloom filter for, an upper bound is fine.
+     * @return the summary of the written table.
+     */
+    @NotNull
+    static TableMeta serialize(
             final File file,
-            final Iterator<Cell> elementsIterator) throws IOException {
-
-        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            final int fileNumber,
+            final Iterator<Cell> elementsIterator,
+            final long expectedCells,
+            final LsmConfig config) throws IOException {
+        try (FileChannel channel = FileChannel.open(
+                file.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+             SSTableWriter writer = new SSTableWriter(channel, config, expectedCells)) {
+            while (elementsIterator.hasNext()) {
+                writer.write(elementsIterator.next());
+            }
+            writer.finish();
+            return writer.meta(fileNumber);
+        }
+    }
 
-            final List<Integer> offsets = new ArrayList<>();
+    /**
+     * The open file of the table with the Bloom filter and the index read from it.
+     * The handle is reference counted: it is held by the cache of open tables or by the table itself,
+     * lookups hold it for their duration and iterators until they are exhausted.
+     * The file is closed once the last reference is released, or once the handle is unreachable
+     * if an iterator is abandoned.
+     */
+    final class Handle {
+
+        private final FileChannel fileChannel;
+        private final Cleaner.Cleanable cleanable;
+        @Nullable
+        private final ByteBuffer mapped;
+        private final long sizeInBytes;
+        private final int numOfElements;
+        private final int shiftToOffsetsArray;
+        private final BloomFilter bloom;
+        @Nullable
+        private final BlockIndex blocks;
+        private final AtomicInteger refs = new AtomicInteger(1);
+
+        /**
+         * Opens the file of the table.
+         * SSTables are memory-mapped if configured so, files which cannot be mapped,
+         * including the ones over 2GB, are read through the file channel.
+         */
+        private Handle() throws IOException {
+            fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            cleanable = CLEANER.register(this, closer(fileChannel));
+            mapped = config.isMmapReads() ? map(fileChannel) : null;
+            final long fileSize = fileChannel.size();
+            sizeInBytes = fileSize;
+            final int version = fileSize >= TRAILER_BYTES && readLong(fileSize - LONG_BYTES) == MAGIC
+                    ? readInt(fileSize - TRAILER_BYTES)
+                    : 0;
+
+            if (version == VERSION) {
+                final ByteBuffer footer = read(fileSize - FOOTER_BYTES, FOOTER_BYTES);
+                final long indexOffset = footer.getLong();
+                final int blockCount = footer.getInt();
+                numOfElements = footer.getInt();
+                footer.getLong(); // max sequence
+                final int bloomWords = footer.getInt();
+                final long bloomOffset = fileSize - FOOTER_BYTES - (long) bloomWords * LONG_BYTES;
+                bloom = readBloom(bloomOffset, bloomWords, footer.getInt());
+                blocks = new BlockIndex(read(indexOffset, Math.toIntExact(bloomOffset - indexOffset)), blockCount);
+                shiftToOffsetsArray = 0;
+            } else if (version == 0) {
+                numOfElements = readInt(fileSize - INT_BYTES);
+                bloom = BloomFilter.ALL;
+                blocks = null;
+                shiftToOffsetsArray = Math.toIntExact(fileSize - INT_BYTES * (1L + numOfElements));
+            } else {
+                cleanable.clean();
+                throw new IOException("Unsupported SSTable version " + version + " of " + file.getName());
+            }
+        }
 
-            int offset = 0;
-            while (elementsIterator.hasNext()) {
-                final Cell cell = elementsIterator.next();
-                final ByteBuffer key = cell.getKey();
-                final Value value = cell.getValue();
-                final int keySize = key.remaining();
-                offsets.add(offset);
-                offset += keySize + INT_BYTES * 2 + LONG_BYTES;
-                fileChannel.write(ByteBuffer.allocate(Integer.BYTES).putInt(keySize).flip());
-                fileChannel.write(key);
-                fileChannel.write(ByteBuffer.allocate(Long.BYTES).putLong(value.getTimestamp()).flip());
-                if (value.isTombstone()) {
-                    fileChannel.write(ByteBuffer.allocate(Integer.BYTES).putInt(-1).flip());
-                } else {
-                    final ByteBuffer valueBuffer = value.getData();
-                    final int valueSize = valueBuffer.remaining();
-                    fileChannel.write(ByteBuffer.allocate(Integer.BYTES).putInt(valueSize).flip());
-                    fileChannel.write(valueBuffer);
-                    offset += valueSize;
+        /**
+         * Takes one more reference to the handle.
+         * @return false if the handle is already closed.
+         */
+        boolean retain() {
+            while (true) {
+                final int current = refs.get();
+                if (current == 0) {
+                    return false;
+                }
+                if (refs.compareAndSet(current, current + 1)) {
+                    return true;
                 }
             }
+        }
 
-            for (final Integer i : offsets) {
-                fileChannel.write(ByteBuffer.allocate(Integer.BYTES).putInt(i).flip());
+        /**
+         * Drops the reference to the handle, the file is closed with the last one.
+         */
+        void release() {
+            if (refs.decrementAndGet() == 0) {
+                cleanable.clean();
             }
-            fileChannel.write(ByteBuffer.allocate(Integer.BYTES).putInt(offsets.size()).flip());
         }
-    }
 
-    private int getOffset(final int position) throws IOException {
-        final ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES);
-        fileChannel.read(buffer,shiftToOffsetsArray + position * Integer.BYTES);
-        return buffer.flip().getInt();
-    }
+        /**
+         * Memory occupied by the block index of the table.
+         */
+        long indexSizeInBytes() {
+            return blocks == null ? 0 : blocks.sizeInBytes();
+        }
 
-    private ByteBuffer getKey(final int position) throws IOException {
-        final int keyLengthOffset = getOffset(position);
-        final ByteBuffer keySizeBuf = ByteBuffer.allocate(Integer.BYTES);
-        fileChannel.read(keySizeBuf, keyLengthOffset);
-        final ByteBuffer keyBuf = ByteBuffer.allocate(keySizeBuf.flip().getInt());
-        fileChannel.read(keyBuf,keyLengthOffset + INT_BYTES);
-        return keyBuf.flip();
-    }
+        @NotNull
+        TableMeta describe(final int fileNumber) throws IOException {
+            if (numOfElements == 0) {
+                return new TableMeta(fileNumber, sizeInBytes, 0, EMPTY_KEY, EMPTY_KEY);
+            }
+            if (blocks != null) {
+                final Block last = readBlock(blocks.blocks() - 1, false);
+                return new TableMeta(
+                        fileNumber,
+                        sizeInBytes,
+                        numOfElements,
+                        readBlock(0, false).cell(0).getKey(),
+                        last.cell(last.size() - 1).getKey());
+            }
+            return new TableMeta(fileNumber, sizeInBytes, numOfElements, getKey(0), getKey(numOfElements - 1));
+        }
 
-    private int getPosition(final ByteBuffer key) throws IOException {
-        int left = 0;
-        int right = numOfElements - 1;
-        while (left <= right) {
-            final int mid = (left + right) / 2;
-            final ByteBuffer midValue = getKey(mid);
-            final int cmp = midValue.compareTo(key);
+        /**
+         * Iterates the cells of the range, the iterator holds a reference to the handle.
+         * @param from - the first key of the range, inclusive.
+         * @param to - the end of the range, exclusive, null if it is unbounded.
+         */
+        @NotNull
+        Iterator<Cell> iterator(
+                @NotNull final ByteBuffer from,
+                @Nullable final ByteBuffer to) throws IOException {
+            if (blocks != null) {
+                return new BlockIterator(from, to);
+            }
+            return new SSTableIterator(from, to);
+        }
 
-            if (cmp < 0) {
-                left = mid + 1;
-            } else if (cmp > 0) {
-                right = mid - 1;
-            } else {
-                return mid;
+        /**
+         * Iterates the cells of the range in descending order, the iterator holds a reference to the handle.
+         * @param from - the first key of the range, inclusive.
+         * @param to - the end of the range, exclusive, null if it is unbounded.
+         */
+        @NotNull
+        Iterator<Cell> descendingIterator(
+                @NotNull final ByteBuffer from,
+                @Nullable final ByteBuffer to) throws IOException {
+            if (blocks != null) {
+                return new DescendingBlockIterator(from, to);
             }
+            return new DescendingSSTableIterator(from, to);
         }
 
-        return left;
-    }
+        @NotNull
+        private BloomFilter readBloom(
+                final long offset,
+                final int words,
+                final int hashes) throws IOException {
+            final long[] bits = new long[words];
+            read(offset, words * LONG_BYTES).asLongBuffer().get(bits);
+            return new BloomFilter(bits, hashes);
+        }
 
-    private Cell get(final int position) throws IOException {
-        int elementOffset = getOffset(position);
-        final ByteBuffer key = getKey(position);
-        elementOffset += Integer.BYTES + key.remaining();
-        final ByteBuffer timestampBuf = ByteBuffer.allocate(LONG_BYTES);
-        fileChannel.read(timestampBuf, elementOffset);
+        private int readInt(final long offset) throws IOException {
+            if (mapped != null) {
+                return mapped.getInt((int) offset);
+            }
+            return read(offset, INT_BYTES).getInt();
+        }
+
+        private long readLong(final long offset) throws IOException {
+            if (mapped != null) {
+                return mapped.getLong((int) offset);
+            }
+            return read(offset, LONG_BYTES).getLong();
+        }
 
-        final ByteBuffer valueSizeBuf = ByteBuffer.allocate(Integer.BYTES);
-        fileChannel.read(valueSizeBuf, elementOffset + Long.BYTES);
-        final int valueSize = valueSizeBuf.flip().getInt();
+        private ByteBuffer read(
+                final long offset,
+                final int size) throws IOException {
+            if (mapped != null) {
+                return mapped.duplicate()
+                        .position((int) offset)
+                        .limit((int) offset + size)
+                        .slice();
+            }
+            final ByteBuffer buffer = ByteBuffer.allocate(size);
+            while (buffer.hasRemaining()) {
+                if (fileChannel.read(buffer, offset + buffer.position()) < 0) {
+                    throw new IOException("Unexpected end of SSTable");
+                }
+            }
+            return buffer.flip();
+        }
 
-        final Value value;
-        if (valueSize == -1) {
-            value = new Value(timestampBuf.flip().getLong());
-        } else {
-            final ByteBuffer valueBuf = ByteBuffer.allocate(valueSize);
-            fileChannel.read(valueBuf, elementOffset + LONG_BYTES + INT_BYTES);
-            valueBuf.flip();
-            value = new Value(timestampBuf.flip().getLong(), valueBuf);
+        private int getOffset(final int position) throws IOException {
+            return readInt(shiftToOffsetsArray + position * INT_BYTES);
         }
 
-        return new Cell(key, value);
-    }
+        private ByteBuffer getKey(final int position) throws IOException {
+            final int keyLengthOffset = getOffset(position);
+            return read(keyLengthOffset + INT_BYTES, readInt(keyLengthOffset));
+        }
 
-    class SSTableIterator implements Iterator<Cell> {
+        /**
+         * Binary search of the key in the legacy table.
+         * @return the position of the key if it is present, otherwise {@code -(insertion point) - 1}.
+         */
+        private int search(final ByteBuffer key) throws IOException {
+            int left = 0;
+            int right = numOfElements - 1;
+            while (left <= right) {
+                final int mid = (left + right) / 2;
+                final ByteBuffer midValue = getKey(mid);
+                final int cmp = midValue.compareTo(key);
+
+                if (cmp < 0) {
+                    left = mid + 1;
+                } else if (cmp > 0) {
+                    right = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
 
-        private int position;
+            return -left - 1;
+        }
 
-        public SSTableIterator(final ByteBuffer from) {
-            try {
-                position = getPosition(from.rewind());
-            } catch (IOException e) {
-                logger.info("Iterator cannot get 'from' position in SStable");
+        private int getPosition(final ByteBuffer key) throws IOException {
+            return insertionPoint(search(key));
+        }
+
+        @Nullable
+        Value get(@NotNull final ByteBuffer key) throws IOException {
+            if (blocks != null) {
+                final int block = blocks.floor(key);
+                if (block < 0) {
+                    return null;
+                }
+                final Block cells = readBlock(block, true);
+                final int position = cells.search(key);
+                return position < 0 ? null : cells.value(position);
+            }
+            final int position = search(key);
+            if (position < 0) {
+                return null;
             }
+            return getValue(position);
         }
 
-        @Override
-        public boolean hasNext() {
-            return position < numOfElements;
+        /**
+         * Takes the block from the cache or reads it from the file.
+         * Blocks of a mapped file which aren't compressed cost nothing to read and aren't cached.
+         * @param fill - whether the block read from the file is cached, scans don't evict the hot blocks.
+         */
+        @NotNull
+        private Block readBlock(
+                final int block,
+                final boolean fill) throws IOException {
+            final BlockCache blockCache = blockCache();
+            if (blockCache == null || (mapped != null && !blocks.isCompressed(block))) {
+                return decode(block);
+            }
+            final Block cached = blockCache.get(SSTable.this, block);
+            if (cached != null) {
+                return cached;
+            }
+            final Block decoded = decode(block);
+            if (fill) {
+                blockCache.put(SSTable.this, block, decoded);
+            }
+            return decoded;
         }
 
-        @Override
-        public Cell next() {
+        /**
+         * Reads the block and inflates it if it is compressed.
+         */
+        @NotNull
+        private Block decode(final int block) throws IOException {
+            final ByteBuffer stored = read(blocks.offset(block), blocks.size(block));
+            if (!blocks.isCompressed(block)) {
+                return new Block(stored.asReadOnlyBuffer());
+            }
+            final ByteBuffer raw = ByteBuffer.allocate(blocks.rawSize(block));
+            final Inflater inflater = new Inflater();
             try {
-                return get(position++);
-            } catch (IOException e) {
-                logger.info("Iterator cannot get a cell in SStable");
-                throw new RuntimeException(e);
+                inflater.setInput(stored);
+                while (raw.hasRemaining()) {
+                    if (inflater.inflate(raw) == 0 && (inflater.finished() || inflater.needsInput())) {
+                        throw new IOException("Corrupted SSTable block " + block);
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupted SSTable block " + block, e);
+            } finally {
+                inflater.end();
+            }
+            // Cached blocks are shared by the readers
+            return new Block(raw.flip().asReadOnlyBuffer());
+        }
+
+        private Value getValue(final int position) throws IOException {
+            final int elementOffset = getOffset(position);
+            return readValue(elementOffset + INT_BYTES + readInt(elementOffset));
+        }
+
+        private Cell get(final int position) throws IOException {
+            final int elementOffset = getOffset(position);
+            final int keySize = readInt(elementOffset);
+            final ByteBuffer key = read(elementOffset + INT_BYTES, keySize);
+            return new Cell(key, readValue(elementOffset + INT_BYTES + keySize));
+        }
+
+        private Value readValue(final int valueOffset) throws IOException {
+            final long sequence = readLong(valueOffset);
+            final int valueSize = readInt(valueOffset + LONG_BYTES);
+            if (valueSize == -1) {
+                return new Value(sequence);
+            }
+            return new Value(sequence, read(valueOffset + LONG_BYTES + INT_BYTES, valueSize));
+        }
+
+        class SSTableIterator implements Iterator<Cell> {
+
+            private int position;
+            /** The position of the first key past the range. */
+            private int end;
+            private boolean released;
+
+            SSTableIterator(
+                    final ByteBuffer from,
+                    @Nullable final ByteBuffer to) {
+                try {
+                    position = getPosition(from.rewind());
+                    end = to == null ? numOfElements : getPosition(to);
+                } catch (IOException e) {
+                    logger.info("Iterator cannot get 'from' position in SStable");
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                if (position < end) {
+                    return true;
+                }
+                if (!released) {
+                    released = true;
+                    release();
+                }
+                return false;
+            }
+
+            @Override
+            public Cell next() {
+                try {
+                    return get(position++);
+                } catch (IOException e) {
+                    logger.info("Iterator cannot get a cell in SStable");
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+
+        class BlockIterator implements Iterator<Cell> {
+
+            @Nullable
+            private final ByteBuffer to;
+            /** The last block which may contain the keys of the range. */
+            private final int lastBlock;
+            private int blockNumber;
+            @Nullable
+            private Block block;
+            private int position;
+            /** The position of the first cell of the block past the range. */
+            private int end;
+
+            BlockIterator(
+                    @NotNull final ByteBuffer from,
+                    @Nullable final ByteBuffer to) throws IOException {
+                this.to = to;
+                this.lastBlock = to == null ? blocks.blocks() - 1 : blocks.floor(to);
+                blockNumber = Math.max(blocks.floor(from), 0);
+                if (blockNumber > lastBlock) {
+                    block = null;
+                } else {
+                    load(blockNumber);
+                    position = Math.min(insertionPoint(block.search(from)), end);
+                }
+                skipExhausted();
+            }
+
+            @Override
+            public boolean hasNext() {
+                return block != null;
+            }
+
+            @Override
+            public Cell next() {
+                if (block == null) {
+                    throw new NoSuchElementException();
+                }
+                final Cell cell = block.cell(position++);
+                try {
+                    skipExhausted();
+                } catch (IOException e) {
+                    logger.info("Iterator cannot read a block of SStable");
+                    throw new RuntimeException(e);
+                }
+                return cell;
+            }
+
+            private void skipExhausted() throws IOException {
+                while (block != null && position == end) {
+                    blockNumber++;
+                    if (blockNumber <= lastBlock) {
+                        load(blockNumber);
+                    } else {
+                        block = null;
+                    }
+                    position = 0;
+                }
+                if (block == null) {
+                    release();
+                }
+            }
+
+            /**
+             * Reads the block, the end of the range is searched for in the last block only.
+             */
+            private void load(final int number) throws IOException {
+                block = readBlock(number, false);
+                end = number == lastBlock && to != null ? insertionPoint(block.search(to)) : block.size();
+            }
+        }
+
+        /**
+         * Walks the offsets array of the legacy table backwards.
+         */
+        class DescendingSSTableIterator implements Iterator<Cell> {
+
+            private int position;
+            /** The position of the first key of the range. */
+            private int start;
+            private boolean released;
+
+            DescendingSSTableIterator(
+                    final ByteBuffer from,
+                    @Nullable final ByteBuffer to) throws IOException {
+                start = getPosition(from);
+                position = (to == null ? numOfElements : getPosition(to)) - 1;
+            }
+
+            @Override
+            public boolean hasNext() {
+                if (position >= start) {
+                    return true;
+                }
+                if (!released) {
+                    released = true;
+                    release();
+                }
+                return false;
+            }
+
+            @Override
+            public Cell next() {
+                if (position < start) {
+                    throw new NoSuchElementException();
+                }
+                try {
+                    return get(position--);
+                } catch (IOException e) {
+                    logger.info("Iterator cannot get a cell in SStable");
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+
+        /**
+         * Walks the blocks backwards and the cells of each block from its end,
+         * the start of the range is searched for in the first block only.
+         */
+        class DescendingBlockIterator implements Iterator<Cell> {
+
+            @NotNull
+            private final ByteBuffer from;
+            /** The first block which may contain the keys of the range. */
+            private final int firstBlock;
+            private int blockNumber;
+            @Nullable
+            private Block block;
+            private int position;
+            /** The position of the first cell of the block within the range. */
+            private int start;
+
+            DescendingBlockIterator(
+                    @NotNull final ByteBuffer from,
+                    @Nullable final ByteBuffer to) throws IOException {
+                this.from = from;
+                this.firstBlock = Math.max(blocks.floor(from), 0);
+                blockNumber = to == null ? blocks.blocks() - 1 : blocks.floor(to);
+                if (blockNumber < firstBlock) {
+                    block = null;
+                } else {
+                    load(blockNumber, to);
+                }
+                skipExhausted();
+            }
+
+            @Override
+            public boolean hasNext() {
+                return block != null;
+            }
+
+            @Override
+            public Cell next() {
+                if (block == null) {
+                    throw new NoSuchElementException();
+                }
+                final Cell cell = block.cell(position--);
+                try {
+                    skipExhausted();
+                } catch (IOException e) {
+                    logger.info("Iterator cannot read a block of SStable");
+                    throw new RuntimeException(e);
+                }
+                return cell;
+            }
+
+            private void skipExhausted() throws IOException {
+                while (block != null && position < start) {
+                    blockNumber--;
+                    if (blockNumber >= firstBlock) {
+                        load(blockNumber, null);
+                    } else {
+                        block = null;
+                    }
+                }
+                if (block == null) {
+                    release();
+                }
+            }
+
+            /**
+             * Reads the block and positions at its last cell before the end of the range.
+             * @param to - the end of the range if it falls into the block, null otherwise.
+             */
+            private void load(
+                    final int number,
+                    @Nullable final ByteBuffer to) throws IOException {
+                block = readBlock(number, false);
+                start = number == firstBlock ? insertionPoint(block.search(from)) : 0;
+                position = (to == null ? block.size() : insertionPoint(block.search(to))) - 1;
             }
         }
     }
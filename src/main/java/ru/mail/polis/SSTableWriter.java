@@ -0,0 +1,271 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Streams cells into an SSTable file of the block format.
+ * Cells are accumulated in a block buffer, full blocks are compressed and go to an output buffer
+ * which is written out in large chunks. The output buffer is on the heap: flushes and compactions create
+ * many writers and direct memory is only freed by GC, while the channel copies heap buffers through
+ * the direct buffer it caches per thread anyway. The block index is kept in memory until the table is finished,
+ * the Bloom filter is sized for the expected amount of cells up front and the keys are added as they come.
+ */
+final class SSTableWriter implements Closeable {
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int INT_BYTES = 4;
+    private static final int LONG_BYTES = 8;
+    private static final ByteBuffer EMPTY_KEY = ByteBuffer.allocate(0);
+
+    private final FileChannel fileChannel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    private final int blockSize;
+    @NotNull
+    private final LsmConfig.Compression compression;
+    private final Deflater deflater;
+
+    private ByteBuffer block;
+    private int[] blockOffsets = new int[INITIAL_CAPACITY];
+    private int blockCount;
+    private ByteBuffer compressed;
+
+    private ByteBuffer index = ByteBuffer.allocate(INITIAL_CAPACITY * 16);
+    private int blocks;
+    private byte[] firstKey = new byte[0];
+    private byte[] lastKey = new byte[0];
+    private int lastKeySize;
+
+    @NotNull
+    private final BloomFilter bloom;
+    private int count;
+    private long offset;
+    private long maxSequence;
+
+    /**
+     * Creates writer of the SSTable.
+     * @param fileChannel - the file to write the table to, starting at its current position.
+     *                    The channel is not closed by the writer.
+     * @param config - block size, compression and Bloom filter options of the table.
+     * @param expectedCells - amount of the cells to size the Bloom filter for, an upper bound is fine.
+     */
+    SSTableWriter(
+            @NotNull final FileChannel fileChannel,
+            @NotNull final LsmConfig config,
+            final long expectedCells) throws IOException {
+        this.fileChannel = fileChannel;
+        this.offset = fileChannel.position();
+        this.bloom = BloomFilter.create(expectedCells, config.getBloomBitsPerKey());
+        this.blockSize = config.getBlockSize();
+        this.compression = config.getCompression();
+        this.deflater = compression == LsmConfig.Compression.DEFLATE ? new Deflater(Deflater.BEST_SPEED) : null;
+        this.block = ByteBuffer.allocate(blockSize);
+        this.compressed = ByteBuffer.allocate(blockSize);
+    }
+
+    void write(@NotNull final Cell cell) throws IOException {
+        final ByteBuffer key = cell.getKey();
+        final Value value = cell.getValue();
+        final int keySize = key.remaining();
+        final int valueSize = value.isTombstone() ? 0 : value.getData().remaining();
+        final int cellSize = keySize + valueSize + INT_BYTES * 2 + LONG_BYTES;
+
+        if (blockCount > 0 && block.position() + cellSize + INT_BYTES * (blockCount + 2) > blockSize) {
+            flushBlock();
+        }
+        if (blockCount == 0) {
+            appendIndexKey(blocks == 0 ? EMPTY_KEY : separator(key.duplicate()));
+        }
+        if (count == 0) {
+            firstKey = new byte[keySize];
+            key.duplicate().get(firstKey);
+        }
+
+        bloom.add(key);
+        count++;
+        maxSequence = Math.max(maxSequence, value.getSequence());
+        rememberLastKey(key.duplicate());
+
+        if (blockCount == blockOffsets.length) {
+            blockOffsets = Arrays.copyOf(blockOffsets, blockCount * 2);
+        }
+        blockOffsets[blockCount++] = block.position();
+        block = ensureCapacity(block, cellSize);
+        block.putInt(keySize)
+                .put(key)
+                .putLong(value.getSequence());
+        if (value.isTombstone()) {
+            block.putInt(-1);
+        } else {
+            block.putInt(valueSize)
+                    .put(value.getData());
+        }
+    }
+
+    /**
+     * Writes the last block, the block index, the Bloom filter and the footer, completing the table,
+     * and syncs it to disk.
+     */
+    void finish() throws IOException {
+        if (blockCount > 0) {
+            flushBlock();
+        }
+        final long indexOffset = offset;
+        index = ensureCapacity(index, INT_BYTES * 2 + firstKey.length + lastKeySize);
+        index.putInt(firstKey.length)
+                .put(firstKey)
+                .putInt(lastKeySize)
+                .put(lastKey, 0, lastKeySize)
+                .flip();
+        put(index);
+
+        for (final long word : bloom.bits()) {
+            ensureRemaining(LONG_BYTES);
+            buffer.putLong(word);
+        }
+        ensureRemaining(SSTable.FOOTER_BYTES);
+        buffer.putLong(indexOffset)
+                .putInt(blocks)
+                .putInt(count)
+                .putLong(maxSequence)
+                .putInt(bloom.bits().length)
+                .putInt(bloom.hashes())
+                .putInt(SSTable.VERSION)
+                .putLong(SSTable.MAGIC);
+        drain();
+        fileChannel.force(true);
+    }
+
+    /**
+     * Describes the finished table.
+     * @param file - the number the file of the table is named after.
+     */
+    @NotNull
+    TableMeta meta(final int file) throws IOException {
+        return new TableMeta(
+                file,
+                fileChannel.position(),
+                count,
+                ByteBuffer.wrap(firstKey),
+                ByteBuffer.wrap(lastKey, 0, lastKeySize));
+    }
+
+    @Override
+    public void close() {
+        if (deflater != null) {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Completes the block with offsets of its cells, compresses it if that pays off and writes it out.
+     * The block is indexed by its separator key, offset, stored size and uncompressed size.
+     */
+    private void flushBlock() throws IOException {
+        block = ensureCapacity(block, INT_BYTES * (blockCount + 1));
+        for (int i = 0; i < blockCount; i++) {
+            block.putInt(blockOffsets[i]);
+        }
+        block.putInt(blockCount).flip();
+        final int rawSize = block.remaining();
+
+        ByteBuffer stored = block;
+        if (compression == LsmConfig.Compression.DEFLATE) {
+            compressed = ensureCapacity(compressed.clear(), rawSize);
+            deflater.reset();
+            deflater.setInput(block.duplicate());
+            deflater.finish();
+            while (!deflater.finished() && compressed.hasRemaining()) {
+                deflater.deflate(compressed);
+            }
+            if (deflater.finished() && compressed.position() < rawSize) {
+                stored = compressed.flip();
+            }
+        }
+        final int storedSize = stored.remaining();
+
+        index = ensureCapacity(index, LONG_BYTES + INT_BYTES * 2);
+        index.putLong(offset)
+                .putInt(storedSize)
+                .putInt(rawSize);
+        put(stored);
+        offset += storedSize;
+        blocks++;
+        blockCount = 0;
+        block.clear();
+    }
+
+    private void appendIndexKey(@NotNull final ByteBuffer key) {
+        index = ensureCapacity(index, INT_BYTES + key.remaining());
+        index.putInt(key.remaining()).put(key);
+    }
+
+    /**
+     * The shortest prefix of the key which is greater than the last key of the previous block,
+     * so that large keys don't bloat the block index.
+     */
+    @NotNull
+    private ByteBuffer separator(@NotNull final ByteBuffer key) {
+        final ByteBuffer previous = ByteBuffer.wrap(lastKey, 0, lastKeySize);
+        final int mismatch = key.mismatch(previous);
+        return key.limit(key.position() + mismatch + 1);
+    }
+
+    private void rememberLastKey(@NotNull final ByteBuffer key) {
+        lastKeySize = key.remaining();
+        if (lastKey.length < lastKeySize) {
+            lastKey = new byte[lastKeySize];
+        }
+        key.get(lastKey, 0, lastKeySize);
+    }
+
+    @NotNull
+    private static ByteBuffer ensureCapacity(
+            @NotNull final ByteBuffer buf,
+            final int size) {
+        if (buf.remaining() >= size) {
+            return buf;
+        }
+        final long capacity = Math.max((long) buf.capacity() * 2, (long) buf.position() + size);
+        return ByteBuffer.allocate((int) Math.min(Integer.MAX_VALUE, capacity)).put(buf.flip());
+    }
+
+    private void put(@NotNull final ByteBuffer data) throws IOException {
+        if (data.remaining() <= buffer.remaining()) {
+            buffer.put(data);
+            return;
+        }
+        drain();
+        if (data.remaining() <= buffer.remaining()) {
+            buffer.put(data);
+        } else {
+            writeFully(data);
+        }
+    }
+
+    private void ensureRemaining(final int size) throws IOException {
+        if (buffer.remaining() < size) {
+            drain();
+        }
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        writeFully(buffer);
+        buffer.clear();
+    }
+
+    private void writeFully(@NotNull final ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            fileChannel.write(data);
+        }
+    }
+}
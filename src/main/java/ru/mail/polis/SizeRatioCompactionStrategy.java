@@ -0,0 +1,70 @@
+package ru.mail.polis;
+
+import com.google.common.collect.Range;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+
+/**
+ * Leveling by size ratio: keeps a single table per level, every level being at least fanout times larger
+ * than the newer one.
+ * Fresh small tables make up level 0, once there are enough of them they are merged into level 1.
+ * A level which outgrows its share of the older level is merged into it.
+ * That bounds the amount of tables by the logarithm of the data size at the cost of rewriting it more often
+ * than {@link SizeTieredCompactionStrategy} does.
+ * Unlike the leveled compaction of LevelDB, levels aren't partitioned into tables of disjoint key ranges,
+ * so merging a level rewrites the whole older level rather than the overlapping tables only.
+ * The storage keeps its tables ordered by recency rather than by key ranges, which such partitioning needs.
+ */
+public final class SizeRatioCompactionStrategy implements CompactionStrategy {
+
+    private final int level0Trigger;
+    private final int fanout;
+    private final long level0TableSize;
+
+    /**
+     * Merges 4 tables up to 8MB of level 0 into level 1, levels grow 10 times.
+     */
+    public SizeRatioCompactionStrategy() {
+        this(4, 10, 8 * 1024 * 1024);
+    }
+
+    /**
+     * Creates the strategy.
+     * @param level0Trigger - amount of level 0 tables which triggers their compaction.
+     * @param fanout - size ratio of adjacent levels.
+     * @param level0TableSize - the newest tables up to that size are in level 0.
+     */
+    public SizeRatioCompactionStrategy(
+            final int level0Trigger,
+            final int fanout,
+            final long level0TableSize) {
+        if (level0Trigger < 1 || fanout < 2 || level0TableSize < 0) {
+            throw new IllegalArgumentException("Invalid size ratio compaction options");
+        }
+        this.level0Trigger = level0Trigger;
+        this.fanout = fanout;
+        this.level0TableSize = level0TableSize;
+    }
+
+    @Nullable
+    @Override
+    public Range<Integer> pick(@NotNull final List<Long> sizes) {
+        int level0 = 0;
+        while (level0 < sizes.size() && sizes.get(level0) <= level0TableSize) {
+            level0++;
+        }
+        if (level0 >= level0Trigger) {
+            // Level 0 and level 1 if there is one
+            final int end = Math.min(level0 + 1, sizes.size());
+            return end >= 2 ? Range.closedOpen(0, end) : null;
+        }
+        for (int level = level0; level + 1 < sizes.size(); level++) {
+            if (sizes.get(level) * fanout > sizes.get(level + 1)) {
+                return Range.closedOpen(level, level + 2);
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,81 @@
+package ru.mail.polis;
+
+import com.google.common.collect.Range;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+
+/**
+ * Merges runs of tables of similar size, so every tier of sizes holds a bounded amount of tables.
+ * A run is merged as soon as it has enough tables, the run of the smallest tables goes first.
+ * Tables smaller than the minimum size are considered to be of that size, so tiny tables join the first tier.
+ */
+public final class SizeTieredCompactionStrategy implements CompactionStrategy {
+
+    private final int minThreshold;
+    private final int maxThreshold;
+    private final double bucketRatio;
+    private final long minTableSize;
+
+    /**
+     * Merges from 4 to 32 tables which differ from their average size no more than 1.5 times,
+     * with tables under 1MB in a single tier.
+     */
+    public SizeTieredCompactionStrategy() {
+        this(4, 32, 1.5, 1024 * 1024);
+    }
+
+    /**
+     * Creates the strategy.
+     * @param minThreshold - amount of similar tables which triggers their compaction.
+     * @param maxThreshold - maximum amount of tables merged at once.
+     * @param bucketRatio - how many times a table may differ from the average size of the tier.
+     * @param minTableSize - tables up to that size are in the first tier.
+     */
+    public SizeTieredCompactionStrategy(
+            final int minThreshold,
+            final int maxThreshold,
+            final double bucketRatio,
+            final long minTableSize) {
+        if (minThreshold < 2 || maxThreshold < minThreshold || bucketRatio < 1 || minTableSize < 0) {
+            throw new IllegalArgumentException("Invalid size-tiered compaction options");
+        }
+        this.minThreshold = minThreshold;
+        this.maxThreshold = maxThreshold;
+        this.bucketRatio = bucketRatio;
+        this.minTableSize = minTableSize;
+    }
+
+    @Nullable
+    @Override
+    public Range<Integer> pick(@NotNull final List<Long> sizes) {
+        Range<Integer> best = null;
+        double bestAverage = Double.MAX_VALUE;
+        for (int start = 0; start + minThreshold <= sizes.size(); start++) {
+            double total = size(sizes, start);
+            int end = start + 1;
+            while (end < sizes.size() && end - start < maxThreshold) {
+                final double average = total / (end - start);
+                final long size = size(sizes, end);
+                if (size < average / bucketRatio || size > average * bucketRatio) {
+                    break;
+                }
+                total += size;
+                end++;
+            }
+            final double average = total / (end - start);
+            if (end - start >= minThreshold && average < bestAverage) {
+                best = Range.closedOpen(start, end);
+                bestAverage = average;
+            }
+        }
+        return best;
+    }
+
+    private long size(
+            @NotNull final List<Long> sizes,
+            final int index) {
+        return Math.max(sizes.get(index), minTableSize);
+    }
+}
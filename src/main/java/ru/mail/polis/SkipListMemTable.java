@@ -0,0 +1,154 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Memory table of the cells kept on the heap in a concurrent skip list.
+ * Each key maps to the immutable chain of its versions from the newest to the oldest one.
+ * The size of the table is the heap retained by its cells: the keys and the values with their buffers,
+ * the {@link Value} objects, the links of the chains and the skip list nodes,
+ * as laid out by a 64-bit JVM with compressed references.
+ */
+final class SkipListMemTable extends MemTable {
+
+    /** A skip list node and its average share of the index nodes. */
+    private static final int NODE_BYTES = 24 + 12;
+    /** A heap buffer object and the header of its array. */
+    private static final int BUFFER_BYTES = 48 + 16;
+    private static final int VALUE_BYTES = 24;
+    private static final int VERSION_BYTES = 24;
+
+    private final ConcurrentNavigableMap<ByteBuffer, Version> map = new ConcurrentSkipListMap<>();
+
+    private final AtomicLong curSizeInBytes = new AtomicLong();
+
+    @NotNull
+    @Override
+    Iterator<Cell> iterator(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to,
+            final long maxSequence) {
+        return cells(to == null ? map.tailMap(from) : map.subMap(from, to), maxSequence);
+    }
+
+    @NotNull
+    @Override
+    Iterator<Cell> descendingIterator(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to,
+            final long maxSequence) {
+        return cells((to == null ? map.tailMap(from) : map.subMap(from, to)).descendingMap(), maxSequence);
+    }
+
+    @NotNull
+    private static Iterator<Cell> cells(
+            @NotNull final Map<ByteBuffer, Version> range,
+            final long maxSequence) {
+        return range.entrySet()
+                .stream()
+                .map(entry -> {
+                    final Value value = entry.getValue().latest(maxSequence);
+                    return value == null ? null : new Cell(entry.getKey(), value);
+                })
+                .filter(Objects::nonNull)
+                .iterator();
+    }
+
+    @Nullable
+    @Override
+    Value get(
+            @NotNull final ByteBuffer key,
+            final long maxSequence) {
+        final Version versions = map.get(key);
+        return versions == null ? null : versions.latest(maxSequence);
+    }
+
+    @Override
+    long upsert(@NotNull final ByteBuffer key, @NotNull final Value value) {
+        final ByteBuffer storedKey = key.duplicate();
+        while (true) {
+            final Version previous = map.putIfAbsent(storedKey, new Version(value, null));
+            if (previous == null) {
+                final long growth = NODE_BYTES + BUFFER_BYTES + key.remaining() + VERSION_BYTES + sizeOf(value);
+                curSizeInBytes.addAndGet(growth);
+                return growth;
+            }
+            if (map.replace(storedKey, previous, previous.insert(value))) {
+                final long growth = VERSION_BYTES + sizeOf(value);
+                curSizeInBytes.addAndGet(growth);
+                return growth;
+            }
+        }
+    }
+
+    private static long sizeOf(@NotNull final Value value) {
+        return value.isTombstone() ? VALUE_BYTES : VALUE_BYTES + BUFFER_BYTES + value.getData().remaining();
+    }
+
+    @Override
+    public long getSizeInByte() {
+        return curSizeInBytes.get();
+    }
+
+    @Override
+    public void close() {
+        map.clear();
+        curSizeInBytes.set(0);
+    }
+
+    @Override
+    public int size() {
+        return map.size();
+    }
+
+    /**
+     * Link of the chain of the versions of a key, the chains are replaced rather than changed.
+     */
+    private static final class Version {
+        @NotNull
+        private final Value value;
+        @Nullable
+        private final Version older;
+
+        Version(
+                @NotNull final Value value,
+                @Nullable final Version older) {
+            this.value = value;
+            this.older = older;
+        }
+
+        /**
+         * The latest version not newer than the given sequence number, or null if there is none.
+         */
+        @Nullable
+        Value latest(final long maxSequence) {
+            for (Version version = this; version != null; version = version.older) {
+                if (version.value.getSequence() <= maxSequence) {
+                    return version.value;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * The chain with the value put at its place, ahead of the versions of the same sequence number.
+         * Only the links of the newer versions are copied, which are rare since writers are numbered in order.
+         */
+        @NotNull
+        Version insert(@NotNull final Value inserted) {
+            if (value.getSequence() <= inserted.getSequence()) {
+                return new Version(inserted, this);
+            }
+            return new Version(value, older == null ? new Version(inserted, null) : older.insert(inserted));
+        }
+    }
+}
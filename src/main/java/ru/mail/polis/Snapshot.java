@@ -0,0 +1,63 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Point-in-time view of the storage, which doesn't see the mutations applied after it is taken.
+ * The view keeps the tables it reads alive, so it should be closed as soon as it is no longer needed,
+ * the views still open are closed along with the storage. Iterators obtained before the view is closed stay valid.
+ */
+public interface Snapshot extends Closeable {
+
+    /**
+     * The sequence number of the latest mutation seen through the view.
+     */
+    long getSequence();
+
+    /**
+     * Provides iterator over the {@link Record}s of the view starting at "from" key (inclusive)
+     * in <b>ascending</b> order, see {@link DAO#iterator(ByteBuffer)}.
+     */
+    @NotNull
+    Iterator<Record> iterator(@NotNull ByteBuffer from) throws IOException;
+
+    /**
+     * Provides iterator over the {@link Record}s of the view starting at "from" key (inclusive)
+     * until given "to" key (exclusive) in <b>ascending</b> order, see {@link DAO#range(ByteBuffer, ByteBuffer)}.
+     */
+    @NotNull
+    Iterator<Record> range(
+            @NotNull ByteBuffer from,
+            @Nullable ByteBuffer to) throws IOException;
+
+    /**
+     * Provides iterator over the {@link Record}s of the view from "from" key (inclusive)
+     * until given "to" key (exclusive) in <b>descending</b> order,
+     * see {@link DAO#descendingRange(ByteBuffer, ByteBuffer)}.
+     */
+    @NotNull
+    Iterator<Record> descendingRange(
+            @NotNull ByteBuffer from,
+            @Nullable ByteBuffer to) throws IOException;
+
+    /**
+     * Obtains the value of the key as it was when the view was taken.
+     *
+     * @throws NoSuchElementException if no such record
+     */
+    @NotNull
+    ByteBuffer get(@NotNull ByteBuffer key) throws IOException, NoSuchElementException;
+
+    /**
+     * Releases the tables of the view.
+     */
+    @Override
+    void close();
+}
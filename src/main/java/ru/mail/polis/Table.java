@@ -1,6 +1,7 @@
 package ru.mail.polis;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -9,7 +10,33 @@ import java.util.Iterator;
 public interface Table {
 
     @NotNull
-    Iterator<Cell> iterator(@NotNull ByteBuffer from) throws IOException;
+    default Iterator<Cell> iterator(@NotNull ByteBuffer from) throws IOException {
+        return iterator(from, null);
+    }
+
+    /**
+     * Iterates the cells of the keys from the range, the table stops reading as soon as the range ends.
+     * @param from - the first key of the range, inclusive.
+     * @param to - the end of the range, exclusive and not less than the first key, null if it is unbounded.
+     */
+    @NotNull
+    Iterator<Cell> iterator(@NotNull ByteBuffer from, @Nullable ByteBuffer to) throws IOException;
+
+    /**
+     * Iterates the cells of the keys from the range in descending order,
+     * starting at the greatest key before the end of the range.
+     * @param from - the first key of the range, inclusive.
+     * @param to - the end of the range, exclusive and not less than the first key, null if it is unbounded.
+     */
+    @NotNull
+    Iterator<Cell> descendingIterator(@NotNull ByteBuffer from, @Nullable ByteBuffer to) throws IOException;
+
+    /**
+     * Looks up the exact key.
+     * @return the value of the key, possibly a tombstone, or null if the table doesn't know the key.
+     */
+    @Nullable
+    Value get(@NotNull ByteBuffer key) throws IOException;
 
     void upsert(@NotNull ByteBuffer key, @NotNull ByteBuffer value) throws IOException;
 
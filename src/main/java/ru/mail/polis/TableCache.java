@@ -0,0 +1,82 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Open files of the SSTables of the storage, so that the amount of open files doesn't grow with the tables.
+ * Tables are opened on demand and the least recently used one is released once there are too many of them.
+ * A released file is closed as soon as no lookup or iterator is reading it.
+ */
+final class TableCache {
+
+    private final Map<SSTable, SSTable.Handle> handles;
+
+    /**
+     * Creates the cache.
+     * @param capacity - amount of tables kept open.
+     */
+    TableCache(final int capacity) {
+        this.handles = new LinkedHashMap<>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<SSTable, SSTable.Handle> eldest) {
+                if (size() <= capacity) {
+                    return false;
+                }
+                eldest.getValue().release();
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Takes a reference to the open file of the table, opening it if needed.
+     * Concurrent calls for the same table are expected to be serialized by the table.
+     */
+    @NotNull
+    SSTable.Handle acquire(@NotNull final SSTable table) throws IOException {
+        synchronized (this) {
+            final SSTable.Handle handle = handles.get(table);
+            if (handle != null && handle.retain()) {
+                return handle;
+            }
+        }
+        final SSTable.Handle opened = table.open();
+        opened.retain();
+        synchronized (this) {
+            handles.put(table, opened);
+        }
+        return opened;
+    }
+
+    /**
+     * The open file of the table, if any, without taking a reference.
+     */
+    @Nullable
+    synchronized SSTable.Handle peek(@NotNull final SSTable table) {
+        return handles.get(table);
+    }
+
+    /**
+     * Releases the file of the table which is closed or no longer read through the cache.
+     */
+    synchronized void invalidate(@NotNull final SSTable table) {
+        final SSTable.Handle handle = handles.remove(table);
+        if (handle != null) {
+            handle.release();
+        }
+    }
+
+    /**
+     * Amount of the tables kept open.
+     */
+    synchronized int size() {
+        return handles.size();
+    }
+}
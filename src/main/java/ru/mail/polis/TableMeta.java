@@ -0,0 +1,90 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Summary of an SSTable recorded in the {@link Manifest}, so the table needn't be opened to learn it.
+ * Only prefixes of the first and the last keys are kept, so huge keys don't bloat the manifest,
+ * which makes the key range a conservative one.
+ */
+final class TableMeta {
+
+    /** The longest prefix of the boundary keys kept. */
+    static final int MAX_KEY_BYTES = 128;
+
+    /** The number the file of the table is named after. */
+    final int file;
+    /** Size of the table file. */
+    final long sizeInBytes;
+    /** Amount of the cells including tombstones. */
+    final int count;
+    @NotNull
+    private final ByteBuffer firstKey;
+    @NotNull
+    private final ByteBuffer lastKey;
+
+    /**
+     * Describes the table, prefixes of the keys are copied.
+     * @param firstKey - the least key of the table, empty if the table is empty.
+     * @param lastKey - the greatest key of the table, empty if the table is empty.
+     */
+    TableMeta(
+            final int file,
+            final long sizeInBytes,
+            final int count,
+            @NotNull final ByteBuffer firstKey,
+            @NotNull final ByteBuffer lastKey) {
+        this.file = file;
+        this.sizeInBytes = sizeInBytes;
+        this.count = count;
+        this.firstKey = copy(firstKey);
+        this.lastKey = copy(lastKey);
+    }
+
+    @NotNull
+    private static ByteBuffer copy(@NotNull final ByteBuffer key) {
+        final ByteBuffer prefix = key.duplicate();
+        prefix.limit(prefix.position() + Math.min(prefix.remaining(), MAX_KEY_BYTES));
+        final ByteBuffer copy = ByteBuffer.allocate(prefix.remaining());
+        copy.put(prefix).flip();
+        return copy;
+    }
+
+    @NotNull
+    ByteBuffer firstKey() {
+        return firstKey.asReadOnlyBuffer();
+    }
+
+    @NotNull
+    ByteBuffer lastKey() {
+        return lastKey.asReadOnlyBuffer();
+    }
+
+    /**
+     * Checks whether the key may fall into the key range of the table.
+     * Keys of the range don't exceed the last key when cut to the length of its kept prefix.
+     */
+    boolean covers(@NotNull final ByteBuffer key) {
+        return count > 0 && firstKey.compareTo(key) <= 0 && !endsBefore(key);
+    }
+
+    /**
+     * Checks whether the keys of the range may fall into the key range of the table.
+     * @param from - the first key of the range, inclusive.
+     * @param to - the end of the range, exclusive, null if it is unbounded.
+     */
+    boolean overlaps(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) {
+        return count > 0 && (to == null || firstKey.compareTo(to) < 0) && !endsBefore(from);
+    }
+
+    private boolean endsBefore(@NotNull final ByteBuffer key) {
+        final ByteBuffer prefix = key.duplicate();
+        prefix.limit(prefix.position() + Math.min(prefix.remaining(), lastKey.remaining()));
+        return lastKey.compareTo(prefix) < 0;
+    }
+}
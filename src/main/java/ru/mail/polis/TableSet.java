@@ -0,0 +1,77 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Immutable snapshot of the tables making up the storage.
+ * Every change of the set produces a new snapshot, so readers never see it half-updated.
+ */
+final class TableSet {
+
+    /** The memory table accepting writes. */
+    @NotNull
+    final MemTable memtable;
+    /** Frozen memory tables waiting to be flushed, by generation. */
+    @NotNull
+    final NavigableMap<Integer, Table> flushing;
+    /** SSTables on disk, by generation. */
+    @NotNull
+    final NavigableMap<Integer, SSTable> ssTables;
+    /** The generation of the SSTable which the active memory table is flushed to. */
+    final int generation;
+
+    TableSet(
+            @NotNull final MemTable memtable,
+            @NotNull final NavigableMap<Integer, Table> flushing,
+            @NotNull final NavigableMap<Integer, SSTable> ssTables,
+            final int generation) {
+        this.memtable = memtable;
+        this.flushing = Collections.unmodifiableNavigableMap(flushing);
+        this.ssTables = Collections.unmodifiableNavigableMap(ssTables);
+        this.generation = generation;
+    }
+
+    /**
+     * Moves the active memory table to the flush queue and replaces it with an empty one.
+     * @param empty - the new active memory table.
+     */
+    @NotNull
+    TableSet freeze(@NotNull final MemTable empty) {
+        final NavigableMap<Integer, Table> newFlushing = new TreeMap<>(flushing);
+        newFlushing.put(generation, memtable);
+        return new TableSet(empty, newFlushing, ssTables, generation + 1);
+    }
+
+    /**
+     * Replaces the frozen memory table with the SSTable it is flushed to.
+     */
+    @NotNull
+    TableSet flushed(
+            final int gen,
+            @NotNull final SSTable ssTable) {
+        final NavigableMap<Integer, Table> newFlushing = new TreeMap<>(flushing);
+        newFlushing.remove(gen);
+        final NavigableMap<Integer, SSTable> newSSTables = new TreeMap<>(ssTables);
+        newSSTables.put(gen, ssTable);
+        return new TableSet(memtable, newFlushing, newSSTables, generation);
+    }
+
+    /**
+     * Replaces the compacted SSTables with the result of their compaction.
+     */
+    @NotNull
+    TableSet compacted(
+            @NotNull final Collection<Integer> inputs,
+            final int gen,
+            @NotNull final SSTable ssTable) {
+        final NavigableMap<Integer, SSTable> newSSTables = new TreeMap<>(ssTables);
+        newSSTables.keySet().removeAll(inputs);
+        newSSTables.put(gen, ssTable);
+        return new TableSet(memtable, flushing, newSSTables, generation);
+    }
+}
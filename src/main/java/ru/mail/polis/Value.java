@@ -5,18 +5,18 @@ import org.jetbrains.annotations.NotNull;
 import java.nio.ByteBuffer;
 
 public class Value implements Comparable<Value> {
-    private final long timestamp;
+    private final long sequence;
     private final ByteBuffer data;
 
-    Value(final long timestamp, final ByteBuffer data) {
-        assert timestamp > 0L;
-        this.timestamp = timestamp;
+    Value(final long sequence, final ByteBuffer data) {
+        assert sequence > 0L;
+        this.sequence = sequence;
         this.data = data;
     }
 
-    Value(final long timestamp) {
-        assert timestamp > 0L;
-        this.timestamp = timestamp;
+    Value(final long sequence) {
+        assert sequence > 0L;
+        this.sequence = sequence;
         this.data = null;
     }
 
@@ -29,12 +29,24 @@ public class Value implements Comparable<Value> {
         return data.asReadOnlyBuffer();
     }
 
-    long getTimestamp() {
-        return timestamp;
+    /**
+     * The data itself rather than its view, the caller must not change it.
+     */
+    ByteBuffer data() {
+        assert !isTombstone();
+        return data;
+    }
+
+    /**
+     * Version of the value, the sequence number of the mutation which is unique within the storage
+     * and grows with each mutation.
+     */
+    long getSequence() {
+        return sequence;
     }
 
     @Override
     public int compareTo(@NotNull final Value o) {
-        return -Long.compare(timestamp, o.timestamp);
+        return -Long.compare(sequence, o.sequence);
     }
 }
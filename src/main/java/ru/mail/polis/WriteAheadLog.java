@@ -0,0 +1,332 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log of the memory table mutations.
+ * The log consists of segments, one per memory table, named after the generation of the SSTable
+ * the memory table is going to be flushed to. A segment is dropped as soon as that SSTable is on disk.
+ * Each record is {@code [crc][keySize][sequence][valueSize][key][value]},
+ * where tombstones have value size of -1.
+ * Batches of mutations with consecutive sequence numbers are logged as a single record
+ * {@code [crc][-1][firstSequence][bodySize][keySize][valueSize][key][value]...},
+ * so they are replayed entirely or not at all.
+ */
+final class WriteAheadLog implements Closeable {
+
+    static final String FILE_POSTFIX = ".log";
+
+    private static final Logger logger = Logger.getLogger(WriteAheadLog.class.getName());
+    private static final int HEADER_BYTES = Integer.BYTES * 3 + Long.BYTES;
+    private static final int ENTRY_HEADER_BYTES = Integer.BYTES * 2;
+    /** Key size marking the record of a batch. */
+    private static final int BATCH = -1;
+
+    private final File storage;
+    private final LsmConfig.WalSync sync;
+    private final long syncBytes;
+    private final ScheduledExecutorService syncer;
+    private final ScheduledFuture<?> syncTask;
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+    private final CRC32 crc = new CRC32();
+
+    private File file;
+    private FileChannel channel;
+    private long written;
+    private long unsynced;
+
+    /**
+     * Opens an empty log segment.
+     * @param storage - the directory where log segments stored.
+     * @param generation - the generation of the SSTable which the logged memory table is flushed to.
+     * @param config - sync policy of the log.
+     */
+    WriteAheadLog(
+            @NotNull final File storage,
+            final int generation,
+            @NotNull final LsmConfig config) throws IOException {
+        this.storage = storage;
+        this.sync = config.getWalSync();
+        this.syncBytes = config.getWalSyncBytes();
+        open(generation);
+        if (sync == LsmConfig.WalSync.GROUP) {
+            syncer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "wal-sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            final long interval = config.getWalSyncIntervalMillis();
+            syncTask = syncer.scheduleWithFixedDelay(this::syncQuietly, interval, interval, TimeUnit.MILLISECONDS);
+        } else {
+            syncer = null;
+            syncTask = null;
+        }
+    }
+
+    static File file(
+            @NotNull final File storage,
+            final int generation) {
+        return new File(storage, generation + FILE_POSTFIX);
+    }
+
+    /**
+     * Appends the mutation to the log according to the sync policy.
+     */
+    synchronized void append(
+            @NotNull final ByteBuffer key,
+            @NotNull final Value value) throws IOException {
+        final ByteBuffer keyBuf = key.duplicate();
+        final ByteBuffer data = value.isTombstone() ? ByteBuffer.allocate(0) : value.getData();
+        header.clear();
+        header.putInt(0)
+                .putInt(keyBuf.remaining())
+                .putLong(value.getSequence())
+                .putInt(value.isTombstone() ? -1 : data.remaining());
+        crc.reset();
+        crc.update(header.array(), Integer.BYTES, HEADER_BYTES - Integer.BYTES);
+        crc.update(keyBuf.duplicate());
+        crc.update(data.duplicate());
+        header.putInt(0, (int) crc.getValue()).flip();
+
+        write(new ByteBuffer[]{header, keyBuf, data}, (long) HEADER_BYTES + keyBuf.remaining() + data.remaining());
+    }
+
+    /**
+     * Appends the mutations as a single record according to the sync policy.
+     * @param cells - the mutations with consecutive sequence numbers.
+     */
+    synchronized void append(@NotNull final List<Cell> cells) throws IOException {
+        if (cells.size() == 1) {
+            append(cells.get(0).key(), cells.get(0).getValue());
+            return;
+        }
+        final ByteBuffer[] record = new ByteBuffer[1 + cells.size() * 3];
+        final ByteBuffer entryHeaders = ByteBuffer.allocate(ENTRY_HEADER_BYTES * cells.size());
+        long bodySize = 0;
+        for (int i = 0; i < cells.size(); i++) {
+            final Cell cell = cells.get(i);
+            final Value value = cell.getValue();
+            final ByteBuffer key = cell.getKey();
+            final ByteBuffer data = value.isTombstone() ? ByteBuffer.allocate(0) : value.getData();
+            entryHeaders.putInt(key.remaining()).putInt(value.isTombstone() ? -1 : data.remaining());
+            record[1 + i * 3] = entryHeaders.duplicate()
+                    .position(i * ENTRY_HEADER_BYTES)
+                    .limit((i + 1) * ENTRY_HEADER_BYTES)
+                    .slice();
+            record[2 + i * 3] = key;
+            record[3 + i * 3] = data;
+            bodySize += ENTRY_HEADER_BYTES + key.remaining() + data.remaining();
+        }
+        header.clear();
+        header.putInt(0)
+                .putInt(BATCH)
+                .putLong(cells.get(0).getValue().getSequence())
+                .putInt(Math.toIntExact(bodySize));
+        crc.reset();
+        crc.update(header.array(), Integer.BYTES, HEADER_BYTES - Integer.BYTES);
+        for (int i = 1; i < record.length; i++) {
+            crc.update(record[i].duplicate());
+        }
+        header.putInt(0, (int) crc.getValue()).flip();
+        record[0] = header;
+
+        write(record, HEADER_BYTES + bodySize);
+    }
+
+    private void write(
+            @NotNull final ByteBuffer[] record,
+            final long size) throws IOException {
+        long left = size;
+        while (left > 0) {
+            left -= channel.write(record);
+        }
+        written += size;
+        unsynced += size;
+
+        if (sync == LsmConfig.WalSync.ALWAYS || (sync == LsmConfig.WalSync.GROUP && unsynced >= syncBytes)) {
+            channel.force(false);
+            unsynced = 0;
+        }
+    }
+
+    /**
+     * Completes the current segment, since its memory table is frozen, and starts a new one.
+     * @param generation - the generation of the SSTable which the next memory table is flushed to.
+     */
+    synchronized void rotate(final int generation) throws IOException {
+        closeSegment();
+        open(generation);
+    }
+
+    /**
+     * Drops the segment of the memory table which is persisted.
+     */
+    static void delete(
+            @NotNull final File storage,
+            final int generation) throws IOException {
+        Files.deleteIfExists(file(storage, generation).toPath());
+    }
+
+    /**
+     * Closes the log. The current segment is removed if nothing was appended to it.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (syncer != null) {
+            syncTask.cancel(false);
+            syncer.shutdown();
+        }
+        closeSegment();
+    }
+
+    private void closeSegment() throws IOException {
+        if (sync != LsmConfig.WalSync.NONE && unsynced > 0) {
+            channel.force(false);
+        }
+        channel.close();
+        if (written == 0) {
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+
+    /**
+     * Reads the mutations of the log segment, stopping at the first torn or corrupted record.
+     * @return the greatest sequence number of the replayed mutations, zero if there are none.
+     */
+    static long replay(
+            @NotNull final File file,
+            @NotNull final BiConsumer<ByteBuffer, Value> consumer) throws IOException {
+        final CRC32 checksum = new CRC32();
+        final long fileSize = file.length();
+        long last = 0;
+        try (InputStream input = Files.newInputStream(file.toPath());
+             DataInputStream in = new DataInputStream(new BufferedInputStream(input))) {
+            while (true) {
+                final int crc = in.readInt();
+                final int keySize = in.readInt();
+                final long sequence = in.readLong();
+                final int valueSize = in.readInt();
+                if (keySize == BATCH ? valueSize < 0 || valueSize > fileSize
+                        : keySize < 0 || valueSize < -1 || (long) keySize + valueSize > fileSize) {
+                    logger.info("Corrupted record in write-ahead log " + file.getName());
+                    return last;
+                }
+                final byte[] key = new byte[Math.max(keySize, 0)];
+                in.readFully(key);
+                final byte[] data = new byte[Math.max(valueSize, 0)];
+                in.readFully(data);
+
+                checksum.reset();
+                checksum.update(ByteBuffer.allocate(HEADER_BYTES - Integer.BYTES)
+                        .putInt(keySize)
+                        .putLong(sequence)
+                        .putInt(valueSize)
+                        .array());
+                checksum.update(key);
+                checksum.update(data);
+                if ((int) checksum.getValue() != crc) {
+                    logger.info("Corrupted record in write-ahead log " + file.getName());
+                    return last;
+                }
+
+                if (keySize == BATCH) {
+                    last = Math.max(last, replayBatch(ByteBuffer.wrap(data), sequence, consumer));
+                } else {
+                    consumer.accept(ByteBuffer.wrap(key), value(sequence, ByteBuffer.wrap(data), valueSize));
+                    last = Math.max(last, sequence);
+                }
+            }
+        } catch (EOFException e) {
+            // Torn tail of the last record, everything before it is replayed
+            return last;
+        }
+    }
+
+    /**
+     * Replays the mutations of the batch.
+     * @return the sequence number of the last mutation.
+     */
+    private static long replayBatch(
+            @NotNull final ByteBuffer body,
+            final long firstSequence,
+            @NotNull final BiConsumer<ByteBuffer, Value> consumer) {
+        long sequence = firstSequence - 1;
+        while (body.hasRemaining()) {
+            sequence++;
+            final int keySize = body.getInt();
+            final int valueSize = body.getInt();
+            final ByteBuffer key = body.slice().limit(keySize);
+            body.position(body.position() + keySize);
+            final ByteBuffer data = body.slice().limit(Math.max(valueSize, 0));
+            body.position(body.position() + data.remaining());
+            consumer.accept(key, value(sequence, data, valueSize));
+        }
+        return sequence;
+    }
+
+    @NotNull
+    private static Value value(
+            final long sequence,
+            @NotNull final ByteBuffer data,
+            final int valueSize) {
+        return valueSize == -1 ? new Value(sequence) : new Value(sequence, data);
+    }
+
+    private void open(final int generation) throws IOException {
+        file = file(storage, generation);
+        channel = FileChannel.open(
+                file.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        written = 0;
+        unsynced = 0;
+    }
+
+    private void syncQuietly() {
+        final FileChannel current;
+        final long syncing;
+        synchronized (this) {
+            if (unsynced == 0) {
+                return;
+            }
+            current = channel;
+            syncing = unsynced;
+        }
+        try {
+            current.force(false);
+        } catch (ClosedChannelException e) {
+            // The segment is already completed and synced
+            return;
+        } catch (IOException e) {
+            logger.warning("Unable to sync write-ahead log");
+            return;
+        }
+        synchronized (this) {
+            if (channel == current) {
+                unsynced -= syncing;
+            }
+        }
+    }
+}
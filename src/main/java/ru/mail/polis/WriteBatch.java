@@ -0,0 +1,66 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Mutations applied to the storage together by {@link DAO#apply(WriteBatch)}, later ones win over earlier
+ * ones of the same key. The batch keeps views of the given buffers rather than copies of them,
+ * so their contents must not be changed until the batch is applied.
+ */
+public final class WriteBatch {
+
+    private final List<ByteBuffer> keys = new ArrayList<>();
+    /** Values of the mutations, null for removals. */
+    private final List<ByteBuffer> values = new ArrayList<>();
+
+    /**
+     * Inserts or updates the value by the key.
+     */
+    @NotNull
+    public WriteBatch upsert(
+            @NotNull final ByteBuffer key,
+            @NotNull final ByteBuffer value) {
+        keys.add(key.duplicate());
+        values.add(value.duplicate());
+        return this;
+    }
+
+    /**
+     * Removes the value by the key.
+     */
+    @NotNull
+    public WriteBatch remove(@NotNull final ByteBuffer key) {
+        keys.add(key.duplicate());
+        values.add(null);
+        return this;
+    }
+
+    /**
+     * Amount of mutations in the batch.
+     */
+    public int size() {
+        return keys.size();
+    }
+
+    public boolean isEmpty() {
+        return keys.isEmpty();
+    }
+
+    @NotNull
+    ByteBuffer key(final int i) {
+        return keys.get(i);
+    }
+
+    /**
+     * The value of the mutation, null if it is a removal.
+     */
+    @Nullable
+    ByteBuffer value(final int i) {
+        return values.get(i);
+    }
+}
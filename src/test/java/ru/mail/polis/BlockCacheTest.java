@@ -0,0 +1,104 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Blocks of the SSTables cached by the lookups.
+ */
+class BlockCacheTest extends TestBase {
+    private static final int KEYS = 2_000;
+
+    @Test
+    void hotKeys(@TempDir File data) throws IOException {
+        final BlockCache cache = new BlockCache(64 * 1024);
+        final LsmConfig config = LsmConfig.builder()
+                .flushThreshold(64 * 1024)
+                .compactionStrategy(CompactionStrategy.MANUAL)
+                .blockCache(cache)
+                .build();
+        try (DAO dao = new LsmDAO(data, config)) {
+            for (int i = 0; i < KEYS; i++) {
+                // Compressible values, so the blocks of the mapped files are inflated
+                dao.upsert(key(i), ByteBuffer.wrap(new byte[1024]));
+            }
+        }
+
+        try (DAO dao = new LsmDAO(data, config)) {
+            // Scans don't fill the cache
+            final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+            for (int i = 0; i < KEYS; i++) {
+                assertEquals(key(i), records.next().getKey());
+            }
+            assertFalse(records.hasNext());
+            assertEquals(0, cache.getSizeInBytes());
+            assertEquals(0, cache.getHitCount());
+
+            for (int round = 0; round < 10; round++) {
+                for (int i = 0; i < 10; i++) {
+                    dao.get(key(i));
+                }
+            }
+            assertTrue(cache.getHitCount() >= 90);
+            assertTrue(cache.getSizeInBytes() > 0);
+
+            for (int i = 0; i < KEYS; i++) {
+                dao.get(key(i));
+                assertTrue(cache.getSizeInBytes() <= cache.getCapacity());
+            }
+            assertTrue(cache.getEvictionCount() > 0);
+
+            // Blocks of the tables replaced by the background compaction are dropped
+            dao.compact();
+            final long deadline = System.currentTimeMillis() + 60_000;
+            while (data.list((dir, name) -> name.endsWith(".dat")).length > 1) {
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.yield();
+            }
+            assertEquals(0, cache.getSizeInBytes());
+            dao.get(key(0));
+            assertTrue(cache.getSizeInBytes() > 0);
+        }
+        assertEquals(0, cache.getSizeInBytes());
+    }
+
+    @Test
+    void reopenedTables(@TempDir File data) throws IOException {
+        final BlockCache cache = new BlockCache(1024 * 1024);
+        final LsmConfig config = LsmConfig.builder()
+                .flushThreshold(64 * 1024)
+                .compactionStrategy(CompactionStrategy.MANUAL)
+                .maxOpenFiles(1)
+                .blockCache(cache)
+                .build();
+        try (DAO dao = new LsmDAO(data, config)) {
+            for (int i = 0; i < KEYS; i++) {
+                dao.upsert(key(i), ByteBuffer.wrap(new byte[1024]));
+            }
+        }
+
+        try (DAO dao = new LsmDAO(data, config)) {
+            assertTrue(data.list((dir, name) -> name.endsWith(".dat")).length > 1);
+            dao.get(key(0));
+            dao.get(key(KEYS - 1));
+            final long misses = cache.getMissCount();
+
+            // Only one file is kept open, the tables are closed and reopened by every lookup
+            for (int round = 0; round < 10; round++) {
+                dao.get(key(0));
+                dao.get(key(KEYS - 1));
+            }
+            assertEquals(misses, cache.getMissCount());
+            assertTrue(cache.getHitCount() >= 20);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Lookups through the block index of SSTables.
+ */
+class BlockIndexTest extends TestBase {
+    private static final int KEYS = 10_000;
+
+    @Test
+    void lookups(@TempDir File data) throws Exception {
+        final LsmConfig config = LsmConfig.builder()
+                .flushThreshold(64 * 1024)
+                .mmapReads(false)
+                .blockSize(256)
+                .build();
+
+        // Even keys only, so odd ones fall between the keys of the blocks
+        final TreeMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (DAO dao = new LsmDAO(data, config)) {
+            for (int i = 0; i < KEYS; i += 2) {
+                final ByteBuffer key = intKey(i);
+                final ByteBuffer value = randomBuffer(i % 64 == 0 ? 100_000 : 32);
+                dao.upsert(key, value);
+                expected.put(key, value);
+            }
+            for (int i = 0; i < KEYS; i += 10) {
+                dao.remove(intKey(i));
+                expected.remove(intKey(i));
+            }
+        }
+
+        try (LsmDAO dao = new LsmDAO(data, config)) {
+            for (int i = -1; i <= KEYS; i++) {
+                final ByteBuffer key = intKey(i);
+                final ByteBuffer value = expected.get(key);
+                if (value == null) {
+                    assertThrows(NoSuchElementException.class, () -> dao.get(key));
+                } else {
+                    assertEquals(value, dao.get(key));
+                }
+            }
+
+            // Tables are opened by the lookups
+            final long indexSize = dao.indexSizeInBytes();
+            assertTrue(indexSize > 0);
+
+            for (int i = -1; i <= KEYS; i += 7) {
+                final Iterator<Record> records = dao.iterator(intKey(i));
+                final Iterator<Map.Entry<ByteBuffer, ByteBuffer>> entries =
+                        expected.tailMap(intKey(i)).entrySet().iterator();
+                for (int j = 0; j < 16 && entries.hasNext(); j++) {
+                    final Map.Entry<ByteBuffer, ByteBuffer> entry = entries.next();
+                    final Record record = records.next();
+                    assertEquals(entry.getKey(), record.getKey());
+                    assertEquals(entry.getValue(), record.getValue());
+                }
+                if (!entries.hasNext()) {
+                    assertFalse(records.hasNext());
+                }
+            }
+        }
+    }
+
+    private static ByteBuffer intKey(final int index) {
+        return ByteBuffer.allocate(Integer.BYTES).putInt(index).rewind();
+    }
+}
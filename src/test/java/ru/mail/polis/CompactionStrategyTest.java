@@ -0,0 +1,78 @@
+package ru.mail.polis;
+
+import com.google.common.collect.Range;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Background compaction and its strategies.
+ */
+class CompactionStrategyTest extends TestBase {
+    private static final long MB = 1024 * 1024;
+
+    @Test
+    void sizeTiered() {
+        final CompactionStrategy strategy = new SizeTieredCompactionStrategy(4, 32, 1.5, MB);
+        assertNull(strategy.pick(sizes(10, 10, 10)));
+        // Small tables are in the same tier
+        assertEquals(Range.closedOpen(0, 4), strategy.pick(sizes(1, 0, 1, 1)));
+        // The smallest tier goes first
+        assertEquals(Range.closedOpen(1, 5), strategy.pick(sizes(100, 10, 11, 9, 10, 100, 100, 100, 100)));
+        // Not adjacent tables aren't merged
+        assertNull(strategy.pick(sizes(10, 10, 100, 10, 10)));
+    }
+
+    @Test
+    void sizeRatio() {
+        final CompactionStrategy strategy = new SizeRatioCompactionStrategy(4, 10, 8 * MB);
+        assertNull(strategy.pick(sizes(4, 4, 4, 100)));
+        // Level 0 is merged into level 1
+        assertEquals(Range.closedOpen(0, 5), strategy.pick(sizes(4, 4, 4, 4, 100, 10_000)));
+        // Level 1 outgrows level 2
+        assertEquals(Range.closedOpen(1, 3), strategy.pick(sizes(4, 1_000, 5_000)));
+        assertNull(strategy.pick(sizes(4, 100, 1_000, 10_000)));
+    }
+
+    @Test
+    void background(@TempDir File data) throws IOException {
+        final LsmConfig config = LsmConfig.builder()
+                .flushThreshold(64 * 1024)
+                .compactionStrategy(new SizeRatioCompactionStrategy(2, 4, 256 * 1024))
+                .maxSSTables(8)
+                .build();
+        final Map<ByteBuffer, ByteBuffer> expected = new HashMap<>();
+        try (DAO dao = new LsmDAO(data, config)) {
+            for (int i = 0; i < 10_000; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomValue();
+                dao.upsert(key, value);
+                expected.put(key, value);
+            }
+        }
+
+        // Writers wait for hundreds of flushes to be merged into a few levels
+        assertTrue(data.list().length <= 8 + 1);
+        try (DAO dao = new LsmDAO(data, config)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+        }
+    }
+
+    private static List<Long> sizes(final long... megabytes) {
+        return Arrays.stream(megabytes).mapToObj(size -> size * MB).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,157 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Hammers {@link LsmDAO} from many threads at once.
+ */
+class ConcurrencyTest extends TestBase {
+    private static final int WRITERS = 8;
+    private static final int READERS = 4;
+    private static final int KEYS_PER_WRITER = 256;
+    private static final int OPERATIONS_PER_WRITER = 20_000;
+    private static final int VALUE_LENGTH = 128;
+
+    @Test
+    void stress(@TempDir File data) throws Exception {
+        // Small memory tables to flush a lot while working
+        final LsmConfig config = LsmConfig.builder()
+                .flushThreshold(64 * 1024)
+                .build();
+
+        final List<Map<ByteBuffer, ByteBuffer>> expected = new ArrayList<>(WRITERS);
+        final ExecutorService executor = Executors.newFixedThreadPool(WRITERS + READERS);
+        try (DAO dao = new LsmDAO(data, config)) {
+            final AtomicBoolean writing = new AtomicBoolean(true);
+            final List<Future<?>> writers = new ArrayList<>(WRITERS);
+            for (int writer = 0; writer < WRITERS; writer++) {
+                final Map<ByteBuffer, ByteBuffer> state = new HashMap<>();
+                expected.add(state);
+                writers.add(executor.submit(writer(dao, (byte) writer, state)));
+            }
+            final List<Future<?>> readers = new ArrayList<>(READERS);
+            for (int reader = 0; reader < READERS; reader++) {
+                readers.add(executor.submit(reader(dao, writing)));
+            }
+
+            for (final Future<?> writer : writers) {
+                writer.get();
+            }
+            writing.set(false);
+            for (final Future<?> reader : readers) {
+                reader.get();
+            }
+
+            check(dao, expected);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Everything is persisted
+        try (DAO dao = new LsmDAO(data, config)) {
+            check(dao, expected);
+        }
+    }
+
+    /**
+     * Each writer owns the keys starting with its own prefix, so it knows their final state.
+     */
+    private static Callable<Void> writer(
+            final DAO dao,
+            final byte prefix,
+            final Map<ByteBuffer, ByteBuffer> state) {
+        return () -> {
+            final ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < OPERATIONS_PER_WRITER; i++) {
+                final ByteBuffer key = key(prefix, random.nextInt(KEYS_PER_WRITER));
+                if (random.nextInt(4) == 0) {
+                    dao.remove(key);
+                    state.remove(key);
+                } else {
+                    final ByteBuffer value = randomBuffer(VALUE_LENGTH);
+                    dao.upsert(key, value);
+                    state.put(key, value);
+                }
+                if (random.nextInt(8) == 0) {
+                    final ByteBuffer expected = state.get(key);
+                    if (expected == null) {
+                        assertThrows(NoSuchElementException.class, () -> dao.get(key));
+                    } else {
+                        assertEquals(expected, dao.get(key));
+                    }
+                }
+            }
+            return null;
+        };
+    }
+
+    /**
+     * Readers scan the storage concurrently, the keys should always be unique and ordered.
+     */
+    private static Callable<Void> reader(
+            final DAO dao,
+            final AtomicBoolean writing) {
+        return () -> {
+            while (writing.get()) {
+                final ByteBuffer from = key((byte) ThreadLocalRandom.current().nextInt(WRITERS), 0);
+                final Iterator<Record> records = dao.iterator(from);
+                ByteBuffer previous = null;
+                while (records.hasNext()) {
+                    final ByteBuffer key = records.next().getKey();
+                    assertTrue(key.compareTo(from) >= 0);
+                    if (previous != null) {
+                        assertTrue(previous.compareTo(key) < 0);
+                    }
+                    previous = key;
+                }
+            }
+            return null;
+        };
+    }
+
+    private static void check(
+            final DAO dao,
+            final List<Map<ByteBuffer, ByteBuffer>> expected) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> all = new HashMap<>();
+        expected.forEach(all::putAll);
+
+        int count = 0;
+        final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+        while (records.hasNext()) {
+            final Record record = records.next();
+            assertEquals(all.get(record.getKey()), record.getValue());
+            count++;
+        }
+        assertEquals(all.size(), count);
+    }
+
+    private static ByteBuffer key(
+            final byte prefix,
+            final int index) {
+        return ByteBuffer.allocate(1 + Integer.BYTES)
+                .put(prefix)
+                .putInt(index)
+                .rewind();
+    }
+}
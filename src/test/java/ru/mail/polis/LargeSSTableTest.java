@@ -0,0 +1,65 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * SSTables over 2GB.
+ */
+class LargeSSTableTest extends TestBase {
+    private static final int KEYS = 10_000;
+    /** The table is written after a hole, so the file takes no space on disk. */
+    private static final long HOLE = 3L * 1024 * 1024 * 1024;
+
+    @Test
+    void readsPast2GB(@TempDir File data) throws IOException {
+        final File file = new File(data, "1.dat");
+        final LsmConfig writeConfig = LsmConfig.builder()
+                .blockSize(1024)
+                .build();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             SSTableWriter writer = new SSTableWriter(channel.position(HOLE), writeConfig, KEYS)) {
+            for (int i = 0; i < KEYS; i++) {
+                writer.write(new Cell(key(i), new Value(1, value(i))));
+            }
+            writer.finish();
+        }
+        assertTrue(file.length() > HOLE);
+
+        for (final boolean mmap : new boolean[]{true, false}) {
+            final SSTable table = new SSTable(file, LsmConfig.builder().mmapReads(mmap).build());
+            try {
+                assertEquals(KEYS, table.size());
+                for (int i = 0; i < KEYS; i += 7) {
+                    assertEquals(value(i), table.get(key(i)).getData());
+                }
+                assertNull(table.get(key(KEYS)));
+
+                final Iterator<Cell> cells = table.iterator(key(KEYS / 2));
+                for (int i = KEYS / 2; i < KEYS; i++) {
+                    assertEquals(key(i), cells.next().getKey());
+                }
+                assertFalse(cells.hasNext());
+            } finally {
+                table.close();
+            }
+        }
+    }
+
+    private static ByteBuffer value(final int i) {
+        return ByteBuffer.wrap(String.format("value%05d", i).getBytes(StandardCharsets.US_ASCII));
+    }
+}
@@ -0,0 +1,228 @@
+package ru.mail.polis;
+
+import com.google.common.collect.Iterators;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The off-heap memory table behaves as the heap one, memory tables account their memory.
+ */
+class MemTableTest extends TestBase {
+    private static final int KEYS = 500;
+
+    @Test
+    void sameAsHeap() throws IOException {
+        final MemTable heap = new SkipListMemTable();
+        final MemTable arena = new ArenaMemTable();
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final List<ByteBuffer> keys = new ArrayList<>();
+        for (int i = 0; i < KEYS; i++) {
+            // Signed bytes and prefixes of each other
+            final byte[] key = new byte[random.nextInt(1, 8)];
+            random.nextBytes(key);
+            keys.add(ByteBuffer.wrap(key));
+        }
+        for (int i = 0; i < 20_000; i++) {
+            final ByteBuffer key = keys.get(random.nextInt(keys.size()));
+            final long timestamp = random.nextLong(1, 1_000);
+            final Value value = random.nextInt(5) == 0
+                    ? new Value(timestamp)
+                    : new Value(timestamp, randomValue());
+            heap.upsert(key, value);
+            arena.upsert(key, value);
+        }
+
+        assertEquals(heap.size(), arena.size());
+        for (final ByteBuffer key : keys) {
+            assertSame(heap.get(key), arena.get(key));
+        }
+        assertNull(arena.get(randomKey()));
+        for (final ByteBuffer from : keys.subList(0, 20)) {
+            final Iterator<Cell> expected = heap.iterator(from);
+            final Iterator<Cell> actual = arena.iterator(from);
+            while (expected.hasNext()) {
+                final Cell cell = expected.next();
+                final Cell other = actual.next();
+                assertEquals(cell.getKey(), other.getKey());
+                assertSame(cell.getValue(), other.getValue());
+            }
+            assertFalse(actual.hasNext());
+        }
+        for (int i = 0; i < 20; i++) {
+            final ByteBuffer from = keys.get(i);
+            final ByteBuffer to = keys.get(i + 20);
+            if (from.compareTo(to) > 0) {
+                continue;
+            }
+            final Iterator<Cell> expected = heap.iterator(from, to);
+            final Iterator<Cell> actual = arena.iterator(from, to);
+            while (expected.hasNext()) {
+                assertEquals(expected.next().getKey(), actual.next().getKey());
+            }
+            assertFalse(actual.hasNext());
+
+            final Iterator<Cell> expectedBackwards = heap.descendingIterator(from, i % 2 == 0 ? to : null);
+            final Iterator<Cell> actualBackwards = arena.descendingIterator(from, i % 2 == 0 ? to : null);
+            while (expectedBackwards.hasNext()) {
+                assertEquals(expectedBackwards.next().getKey(), actualBackwards.next().getKey());
+            }
+            assertFalse(actualBackwards.hasNext());
+        }
+    }
+
+    @Test
+    void accounting() throws IOException {
+        final MemTable arena = new ArenaMemTable();
+        assertEquals(0, arena.getSizeInByte());
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+        arena.upsert(key, value);
+        final long size = arena.getSizeInByte();
+        assertTrue(size > key.remaining() + value.remaining());
+        arena.remove(key);
+        assertTrue(arena.getSizeInByte() > size);
+        assertEquals(1, arena.size());
+        arena.close();
+        assertEquals(0, arena.size());
+        assertEquals(0, arena.getSizeInByte());
+        assertNull(arena.get(key));
+    }
+
+    @Test
+    void heapAccounting() throws IOException {
+        final MemTable heap = new SkipListMemTable();
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+        heap.upsert(key, value);
+        final long size = heap.getSizeInByte();
+        assertTrue(size > key.remaining() + value.remaining());
+        // Overwritten versions stay in the table
+        heap.upsert(key, ByteBuffer.allocate(value.remaining() * 2));
+        final long overwritten = heap.getSizeInByte();
+        assertTrue(overwritten > size + value.remaining() * 2);
+        heap.remove(key);
+        assertTrue(heap.getSizeInByte() > overwritten);
+        assertEquals(1, heap.size());
+    }
+
+    @Test
+    void versions() throws IOException {
+        for (final MemTable table : List.of(new SkipListMemTable(), new ArenaMemTable())) {
+            final ByteBuffer key = randomKey();
+            final ByteBuffer hidden = randomKey();
+            final ByteBuffer first = randomValue();
+            final ByteBuffer second = randomValue();
+            table.upsert(key, new Value(10, first));
+            table.upsert(key, new Value(30));
+            // The late writer doesn't roll the key back
+            table.upsert(key, new Value(20, second));
+            table.upsert(hidden, new Value(25, randomValue()));
+
+            assertNull(table.get(key, 9));
+            assertEquals(first, table.get(key, 19).getData());
+            assertEquals(second, table.get(key, 29).getData());
+            assertTrue(table.get(key).isTombstone());
+            assertEquals(2, table.size());
+
+            // Keys having only newer versions are skipped
+            final ByteBuffer from = ByteBuffer.allocate(0);
+            final Iterator<Cell> cells = table.upTo(20).iterator(from);
+            assertEquals(key, cells.next().getKey());
+            assertFalse(cells.hasNext());
+            final Iterator<Cell> backwards = table.descendingIterator(from, null, 20);
+            assertEquals(second, backwards.next().getValue().getData());
+            assertFalse(backwards.hasNext());
+            assertEquals(2, Iterators.size(table.upTo(25).iterator(from)));
+        }
+    }
+
+    @Test
+    void sharedBudget(
+            @TempDir File first,
+            @TempDir File second) throws IOException {
+        final MemTableBudget budget = new MemTableBudget(256 * 1024);
+        final LsmConfig config = LsmConfig.builder()
+                .flushThreshold(1L << 30)
+                .compactionStrategy(CompactionStrategy.MANUAL)
+                .memTableBudget(budget)
+                .build();
+        try (DAO one = new LsmDAO(first, config);
+             DAO other = new LsmDAO(second, config)) {
+            for (int i = 0; i < 2_000; i++) {
+                one.upsert(randomKey(), randomValue());
+                other.upsert(randomKey(), randomValue());
+            }
+            // Neither storage reached the threshold, but both flushed to meet the budget
+            assertTrue(tables(first) > 0);
+            assertTrue(tables(second) > 0);
+            assertTrue(budget.getUsed() < 2 * budget.getLimit());
+        }
+        assertEquals(0, budget.getUsed());
+    }
+
+    @Test
+    void offHeapStorage(@TempDir File data) throws IOException {
+        final LsmConfig config = LsmConfig.builder()
+                .flushThreshold(64 * 1024)
+                .memTableAllocation(LsmConfig.Allocation.OFF_HEAP)
+                .build();
+        final Map<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (DAO dao = new LsmDAO(data, config)) {
+            for (int i = 0; i < 5_000; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomValue();
+                dao.upsert(key, value);
+                expected.put(key, value);
+                if (i % 10 == 0) {
+                    dao.remove(key);
+                    expected.remove(key);
+                }
+            }
+            final Map.Entry<ByteBuffer, ByteBuffer> first = expected.entrySet().iterator().next();
+            assertEquals(first.getValue(), dao.iterator(ByteBuffer.allocate(0)).next().getValue());
+        }
+        try (DAO dao = new LsmDAO(data, config)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+            assertThrows(NoSuchElementException.class, () -> dao.get(randomKey()));
+        }
+    }
+
+    private static int tables(@NotNull final File data) {
+        final String[] names = data.list((dir, name) -> name.endsWith(".dat"));
+        return names == null ? 0 : names.length;
+    }
+
+    private static void assertSame(
+            final Value expected,
+            final Value actual) {
+        if (expected == null) {
+            assertNull(actual);
+            return;
+        }
+        assertEquals(expected.getSequence(), actual.getSequence());
+        assertEquals(expected.isTombstone(), actual.isTombstone());
+        if (!expected.isTombstone()) {
+            assertEquals(expected.getData(), actual.getData());
+        }
+    }
+}
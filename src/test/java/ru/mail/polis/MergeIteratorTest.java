@@ -0,0 +1,91 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * The merge of the tables keeps the newest version of each key.
+ */
+class MergeIteratorTest extends TestBase {
+    private static final int TABLES = 8;
+
+    @Test
+    void empty() {
+        assertFalse(new MergeIterator(Collections.emptyList(), true).hasNext());
+        final MergeIterator merged = new MergeIterator(List.of(Iters.empty(), Iters.empty()), false);
+        assertFalse(merged.hasNext());
+        assertThrows(NoSuchElementException.class, merged::next);
+    }
+
+    @Test
+    void newestVersions() {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final List<ByteBuffer> keys = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            keys.add(randomKey());
+        }
+        // The newest table comes first, versions of the same key may share the sequence number
+        final List<NavigableMap<ByteBuffer, Value>> tables = new ArrayList<>();
+        final NavigableMap<ByteBuffer, Value> expected = new TreeMap<>();
+        for (int t = 0; t < TABLES; t++) {
+            final NavigableMap<ByteBuffer, Value> table = new TreeMap<>();
+            for (int i = 0; i < 100; i++) {
+                final ByteBuffer key = keys.get(random.nextInt(keys.size()));
+                final Value value = random.nextInt(4) == 0 ? new Value(1) : new Value(1, randomValue());
+                table.put(key, value);
+            }
+            table.forEach(expected::putIfAbsent);
+            tables.add(table);
+        }
+
+        for (final boolean skipTombstones : new boolean[]{false, true}) {
+            final List<Iterator<Cell>> cells = new ArrayList<>();
+            for (final NavigableMap<ByteBuffer, Value> table : tables) {
+                final List<Cell> list = new ArrayList<>();
+                table.forEach((key, value) -> list.add(new Cell(key, value)));
+                cells.add(list.iterator());
+            }
+            final Iterator<Cell> merged = new MergeIterator(cells, skipTombstones);
+            for (final Map.Entry<ByteBuffer, Value> entry : expected.entrySet()) {
+                if (skipTombstones && entry.getValue().isTombstone()) {
+                    continue;
+                }
+                final Cell cell = merged.next();
+                assertEquals(entry.getKey(), cell.getKey());
+                assertEquals(entry.getValue(), cell.getValue());
+            }
+            assertFalse(merged.hasNext());
+
+            final List<Iterator<Cell>> backwards = new ArrayList<>();
+            for (final NavigableMap<ByteBuffer, Value> table : tables) {
+                final List<Cell> list = new ArrayList<>();
+                table.descendingMap().forEach((key, value) -> list.add(new Cell(key, value)));
+                backwards.add(list.iterator());
+            }
+            final Iterator<Cell> descending = new MergeIterator(backwards, skipTombstones, true);
+            for (final Map.Entry<ByteBuffer, Value> entry : expected.descendingMap().entrySet()) {
+                if (skipTombstones && entry.getValue().isTombstone()) {
+                    continue;
+                }
+                final Cell cell = descending.next();
+                assertEquals(entry.getKey(), cell.getKey());
+                assertEquals(entry.getValue(), cell.getValue());
+            }
+            assertFalse(descending.hasNext());
+        }
+    }
+}
@@ -23,9 +23,11 @@ import org.junit.jupiter.api.io.TempDir;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Random;
@@ -109,6 +111,184 @@ class PersistenceTest extends TestBase {
         }
     }
 
+    @Test
+    void recoverWithoutClose(@TempDir File data) throws IOException {
+        // Reference values
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+        final ByteBuffer removed = randomKey();
+
+        // Fill storage and "crash" without closing it
+        final DAO crashed = DAOFactory.create(data);
+        crashed.upsert(key, value);
+        crashed.upsert(removed, randomValue());
+        crashed.remove(removed);
+
+        // Recover from the write-ahead log
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(value, dao.get(key));
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+        }
+
+        // Recovered data is persisted
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(value, dao.get(key));
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+        }
+    }
+
+    @Test
+    void newestVersionAcrossRestarts(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        ByteBuffer value = randomValue();
+        for (int round = 0; round < 5; round++) {
+            // Overwrites within the same millisecond, the versions still keep their order
+            try (DAO dao = DAOFactory.create(data)) {
+                for (int i = 0; i < 10; i++) {
+                    value = randomValue();
+                    dao.upsert(key, value);
+                }
+                assertEquals(value, dao.get(key));
+            }
+
+            // Versions written after the recovery of the log are newer than the recovered ones
+            final DAO crashed = DAOFactory.create(data);
+            crashed.upsert(key, randomValue());
+            try (DAO dao = DAOFactory.create(data)) {
+                dao.upsert(key, value);
+                dao.compact();
+            }
+            try (DAO dao = DAOFactory.create(data)) {
+                assertEquals(value, dao.get(key));
+            }
+        }
+    }
+
+    @Test
+    void crashDuringCompaction(@TempDir File data) throws IOException {
+        // Reference values
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+        final ByteBuffer removed = randomKey();
+
+        // Two tables, the newer one overwrites and removes the keys
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(key, randomValue());
+            dao.upsert(removed, randomValue());
+        }
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(key, value);
+            dao.remove(removed);
+        }
+        final Map<String, byte[]> before = new HashMap<>();
+        for (final File file : data.listFiles()) {
+            before.put(file.getName(), java.nio.file.Files.readAllBytes(file.toPath()));
+        }
+
+        // Compact, then bring back the removed inputs as if the process crashed before removing them
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.compact();
+        }
+        for (final Map.Entry<String, byte[]> file : before.entrySet()) {
+            final File input = new File(data, file.getKey());
+            if (!input.exists()) {
+                java.nio.file.Files.write(input.toPath(), file.getValue());
+            }
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(value, dao.get(key));
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+        }
+    }
+
+    @Test
+    void uncommittedTable(@TempDir File data) throws IOException {
+        // Reference value
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(key, value);
+        }
+
+        // Newer table which didn't make it to the manifest and the torn tail of the manifest
+        final Cell stale = new Cell(key, new Value(Long.MAX_VALUE, randomValue()));
+        final File orphan = new File(data, "1000.dat");
+        SSTable.serialize(orphan, 1000, List.of(stale).iterator(), 1, LsmConfig.builder().build());
+        java.nio.file.Files.write(
+                new File(data, Manifest.FILE_NAME).toPath(),
+                new byte[]{1, 2, 3},
+                StandardOpenOption.APPEND);
+
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(value, dao.get(key));
+        }
+        assertFalse(orphan.exists());
+    }
+
+    @Test
+    void failedFlush(@TempDir File data) throws IOException {
+        final LsmConfig config = LsmConfig.builder()
+                .flushThreshold(1024)
+                .compactionStrategy(CompactionStrategy.MANUAL)
+                .build();
+        final Map<ByteBuffer, ByteBuffer> expected = new HashMap<>();
+        try (DAO dao = new LsmDAO(data, config)) {
+            // The files the flushes would write are taken by directories
+            final List<File> blocked = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                final File directory = new File(data, i + ".dat");
+                assertTrue(directory.mkdir());
+                blocked.add(directory);
+            }
+
+            // The writes are refused once the flush fails, the frozen table is still read meanwhile
+            final long deadline = System.currentTimeMillis() + 60_000;
+            int i = 0;
+            while (write(dao, key(i), expected)) {
+                assertTrue(System.currentTimeMillis() < deadline);
+                i++;
+            }
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+
+            // The flush is retried, the writes are accepted again once it succeeds
+            blocked.forEach(File::delete);
+            while (!write(dao, key(i), expected)) {
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.yield();
+            }
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+        }
+
+        try (DAO dao = new LsmDAO(data, config)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+        }
+    }
+
+    /**
+     * Writes the key, which is expected to be found afterwards only if the write succeeds.
+     */
+    private static boolean write(
+            final DAO dao,
+            final ByteBuffer key,
+            final Map<ByteBuffer, ByteBuffer> expected) {
+        final ByteBuffer value = randomValue();
+        try {
+            dao.upsert(key, value);
+        } catch (IOException e) {
+            return false;
+        }
+        expected.put(key, value);
+        return true;
+    }
+
     @RepeatedTest(1000)
     void replaceWithClose(@TempDir File data) throws Exception {
         final ByteBuffer key = randomKey();
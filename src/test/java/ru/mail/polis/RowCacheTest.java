@@ -0,0 +1,114 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Lookups served by the cache of rows see the latest mutations.
+ */
+class RowCacheTest extends TestBase {
+
+    @Test
+    void invalidatedByMutations(@TempDir File data) throws IOException {
+        final LsmConfig config = LsmConfig.builder()
+                .flushThreshold(16 * 1024)
+                .rowCacheSize(1024 * 1024)
+                .build();
+        try (DAO dao = new LsmDAO(data, config)) {
+            final ByteBuffer key = randomKey();
+            assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            for (int i = 0; i < 100; i++) {
+                final ByteBuffer value = randomValue();
+                dao.upsert(key, value);
+                assertEquals(value, dao.get(key));
+                assertEquals(value, dao.get(key));
+                // Flushes don't change the cached rows
+                dao.upsert(randomKey(), randomValue());
+                dao.remove(key);
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            }
+        }
+    }
+
+    @Test
+    void boundedBySize() {
+        final RowCache cache = new RowCache(64 * 1024);
+        for (int i = 0; i < 1_000; i++) {
+            final ByteBuffer key = randomKey();
+            cache.put(key, cache.version(key), new Value(1, randomValue()));
+            assertNotNull(cache.get(key));
+            assertTrue(cache.sizeInBytes() <= 64 * 1024);
+        }
+        final ByteBuffer key = randomKey();
+        final long version = cache.version(key);
+        cache.invalidate(key);
+        // The value resolved before the mutation isn't cached
+        cache.put(key, version, new Value(1, randomValue()));
+        assertNull(cache.get(key));
+    }
+
+    @Test
+    void copiesValues() {
+        final RowCache cache = new RowCache(64 * 1024);
+        final ByteBuffer key = randomKey();
+        final ByteBuffer chunk = ByteBuffer.allocateDirect(4096);
+        final ByteBuffer value = randomValue();
+        chunk.position(100).put(value.duplicate()).flip().position(100);
+        cache.put(key, cache.version(key), new Value(7, chunk.slice()));
+
+        // The cached value doesn't retain the memory the resolved one was a slice of
+        final Value cached = cache.get(key);
+        assertNotNull(cached);
+        assertEquals(7, cached.getSequence());
+        assertEquals(value, cached.getData());
+        assertFalse(cached.getData().isDirect());
+        assertEquals(value.remaining(), cached.getData().capacity());
+    }
+
+    @Test
+    void concurrentWriter(@TempDir File data) throws Exception {
+        final LsmConfig config = LsmConfig.builder()
+                .rowCacheSize(1024 * 1024)
+                .build();
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (DAO dao = new LsmDAO(data, config)) {
+            final ByteBuffer key = randomKey();
+            final AtomicBoolean done = new AtomicBoolean();
+            final Future<?> writer = executor.submit(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    dao.upsert(key, ByteBuffer.allocate(Integer.BYTES).putInt(0, i));
+                }
+                done.set(true);
+                return null;
+            });
+            while (!done.get()) {
+                try {
+                    dao.get(key);
+                } catch (NoSuchElementException e) {
+                    // Not written yet
+                }
+            }
+            writer.get();
+            assertEquals(9_999, dao.get(key).getInt(0));
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
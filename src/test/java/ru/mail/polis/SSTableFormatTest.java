@@ -0,0 +1,172 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Compatibility of the SSTable formats and block compression.
+ */
+class SSTableFormatTest extends TestBase {
+    private static final int KEYS = 1000;
+
+    @Test
+    void readsLegacyTables(@TempDir File data) throws IOException {
+        // Legacy table with all the keys and newer one overwriting the even ones
+        writeLegacy(new File(data, "1.dat"), 1, 1);
+        writeLegacy(new File(data, "2.dat"), 2, 2);
+
+        try (DAO dao = new LsmDAO(data, LsmConfig.builder().build())) {
+            dao.upsert(key(3), value(3, 3));
+            for (int i = 0; i < KEYS; i++) {
+                assertEquals(expected(i), dao.get(key(i)));
+            }
+            assertThrows(NoSuchElementException.class, () -> dao.get(key(KEYS)));
+
+            final Iterator<Record> records = dao.iterator(key(0));
+            for (int i = 0; i < KEYS; i++) {
+                final Record record = records.next();
+                assertEquals(key(i), record.getKey());
+                assertEquals(expected(i), record.getValue());
+            }
+            assertFalse(records.hasNext());
+
+            final Iterator<Record> range = dao.range(key(KEYS / 4), key(KEYS / 2));
+            for (int i = KEYS / 4; i < KEYS / 2; i++) {
+                assertEquals(expected(i), range.next().getValue());
+            }
+            assertFalse(range.hasNext());
+
+            final Iterator<Record> backwards = dao.descendingRange(key(KEYS / 4), null);
+            for (int i = KEYS - 1; i >= KEYS / 4; i--) {
+                assertEquals(expected(i), backwards.next().getValue());
+            }
+            assertFalse(backwards.hasNext());
+        }
+    }
+
+    @Test
+    void compressesBlocks(@TempDir File data) throws IOException {
+        final File plain = new File(data, "plain");
+        final File deflated = new File(data, "deflated");
+        assertTrue(plain.mkdir() && deflated.mkdir());
+        fill(plain, LsmConfig.Compression.NONE);
+        fill(deflated, LsmConfig.Compression.DEFLATE);
+        assertTrue(size(deflated) * 2 < size(plain));
+    }
+
+    private static void fill(
+            final File data,
+            final LsmConfig.Compression compression) throws IOException {
+        final LsmConfig config = LsmConfig.builder()
+                .blockSize(4 * 1024)
+                .compression(compression)
+                .build();
+        try (DAO dao = new LsmDAO(data, config)) {
+            for (int i = 0; i < KEYS; i++) {
+                dao.upsert(key(i), compressible(i));
+            }
+        }
+        try (DAO dao = new LsmDAO(data, config)) {
+            for (int i = 0; i < KEYS; i++) {
+                assertEquals(compressible(i), dao.get(key(i)));
+            }
+            final Iterator<Record> records = dao.iterator(key(KEYS / 2));
+            for (int i = KEYS / 2; i < KEYS; i++) {
+                assertEquals(key(i), records.next().getKey());
+            }
+            assertFalse(records.hasNext());
+
+            // Ranges ending within a block, at its boundary and before the table
+            for (int to = KEYS / 2; to <= KEYS / 2 + 64; to++) {
+                final Iterator<Record> range = dao.range(key(KEYS / 2 - 3), key(to));
+                for (int i = KEYS / 2 - 3; i < to; i++) {
+                    assertEquals(key(i), range.next().getKey());
+                }
+                assertFalse(range.hasNext());
+
+                // Cells before the key walking back over the blocks
+                final Iterator<Record> backwards = dao.descendingRange(key(to - 64), key(to));
+                for (int i = to - 1; i >= to - 64; i--) {
+                    assertEquals(key(i), backwards.next().getKey());
+                }
+                assertFalse(backwards.hasNext());
+            }
+            assertFalse(dao.range(ByteBuffer.allocate(0), key(0)).hasNext());
+            assertFalse(dao.descendingRange(ByteBuffer.allocate(0), key(0)).hasNext());
+        }
+    }
+
+    private static long size(final File data) {
+        return Arrays.stream(data.listFiles()).mapToLong(File::length).sum();
+    }
+
+    private static ByteBuffer compressible(final int i) {
+        final byte[] value = new byte[256];
+        Arrays.fill(value, (byte) i);
+        return ByteBuffer.wrap(value);
+    }
+
+    private static ByteBuffer expected(final int i) {
+        if (i == 3) {
+            return value(3, 3);
+        }
+        return i % 2 == 0 ? value(i, 2) : value(i, 1);
+    }
+
+    /**
+     * Writes the table of the legacy format by hand.
+     * @param step - every step-th key is written.
+     */
+    private static void writeLegacy(
+            final File file,
+            final int step,
+            final long timestamp) throws IOException {
+        final int count = (KEYS + step - 1) / step;
+        final ByteBuffer cells = ByteBuffer.allocate(KEYS * 64);
+        final int[] offsets = new int[count];
+        for (int n = 0; n < count; n++) {
+            final int i = n * step;
+            final ByteBuffer key = key(i);
+            final ByteBuffer value = value(i, timestamp);
+            offsets[n] = cells.position();
+            cells.putInt(key.remaining())
+                    .put(key)
+                    .putLong(timestamp)
+                    .putInt(value.remaining())
+                    .put(value);
+        }
+        for (final int offset : offsets) {
+            cells.putInt(offset);
+        }
+        cells.putInt(count);
+        try (FileChannel channel = FileChannel.open(
+                file.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE)) {
+            cells.flip();
+            while (cells.hasRemaining()) {
+                channel.write(cells);
+            }
+        }
+    }
+
+    private static ByteBuffer value(
+            final int i,
+            final long timestamp) {
+        return ByteBuffer.allocate(Integer.BYTES + Long.BYTES).putInt(i).putLong(timestamp).rewind();
+    }
+}
@@ -0,0 +1,159 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Snapshots see the storage as it was when they were taken.
+ */
+class SnapshotTest extends TestBase {
+
+    private static final int KEYS = 1_000;
+
+    @Test
+    void isolation(@TempDir File data) throws IOException {
+        try (DAO dao = DAOFactory.create(data)) {
+            for (int i = 0; i < KEYS; i += 2) {
+                dao.upsert(key(i), value(i, 0));
+            }
+            try (Snapshot snapshot = dao.snapshot()) {
+                for (int i = 0; i < KEYS; i++) {
+                    if (i % 4 == 0) {
+                        dao.upsert(key(i), value(i, 1));
+                    } else if (i % 2 == 0) {
+                        dao.remove(key(i));
+                    } else {
+                        dao.upsert(key(i), value(i, 1));
+                    }
+                }
+
+                assertOriginal(snapshot);
+                assertEquals(value(4, 1), dao.get(key(4)));
+                assertThrows(NoSuchElementException.class, () -> dao.get(key(2)));
+                assertEquals(value(1, 1), dao.get(key(1)));
+
+                final Iterator<Record> range = snapshot.range(key(10), key(20));
+                for (int i = 10; i < 20; i += 2) {
+                    assertEquals(key(i), range.next().getKey());
+                }
+                assertFalse(range.hasNext());
+
+                final Iterator<Record> backwards = snapshot.descendingRange(key(10), key(20));
+                for (int i = 18; i >= 10; i -= 2) {
+                    assertEquals(value(i, 0), backwards.next().getValue());
+                }
+                assertFalse(backwards.hasNext());
+            }
+        }
+    }
+
+    @Test
+    void survivesCompaction(@TempDir File data) throws IOException {
+        final LsmConfig config = LsmConfig.builder()
+                .flushThreshold(4 * 1024)
+                .compactionStrategy(CompactionStrategy.MANUAL)
+                .build();
+        try (DAO dao = new LsmDAO(data, config)) {
+            for (int i = 0; i < KEYS; i += 2) {
+                dao.upsert(key(i), value(i, 0));
+            }
+        }
+        final Set<String> original = Set.of(tables(data));
+        assertTrue(original.size() > 1);
+
+        try (DAO dao = new LsmDAO(data, config)) {
+            final Snapshot snapshot = dao.snapshot();
+            for (int i = 0; i < KEYS; i++) {
+                dao.upsert(key(i), value(i, 1));
+            }
+
+            // The tables of the snapshot are replaced, the newer ones are removed at once
+            dao.compact();
+            final long deadline = System.currentTimeMillis() + 60_000;
+            while (tables(data).length != original.size() + 1) {
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.yield();
+            }
+            assertTrue(Set.of(tables(data)).containsAll(original));
+            assertOriginal(snapshot);
+            assertEquals(value(0, 1), dao.get(key(0)));
+
+            // The replaced tables are removed once the snapshot is closed
+            snapshot.close();
+            snapshot.close();
+            assertEquals(1, tables(data).length);
+            assertThrows(IllegalStateException.class, () -> snapshot.get(key(0)));
+            assertEquals(value(0, 1), dao.get(key(0)));
+            assertEquals(value(1, 1), dao.get(key(1)));
+        }
+    }
+
+    @Test
+    void closedWithStorage(@TempDir File data) throws IOException {
+        final Snapshot snapshot;
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(key(0), value(0, 0));
+            snapshot = dao.snapshot();
+            dao.compact();
+        }
+        assertThrows(IllegalStateException.class, () -> snapshot.get(key(0)));
+        snapshot.close();
+    }
+
+    @Test
+    void takenWithoutFlush(@TempDir File data) throws IOException {
+        final LsmConfig config = LsmConfig.builder()
+                .flushThreshold(1L << 30)
+                .build();
+        try (DAO dao = new LsmDAO(data, config)) {
+            for (int i = 0; i < KEYS; i++) {
+                dao.upsert(key(i), value(i, 0));
+                try (Snapshot snapshot = dao.snapshot()) {
+                    dao.upsert(key(i), value(i, 1));
+                    assertEquals(value(i, 0), snapshot.get(key(i)));
+                    assertEquals(value(i, 1), dao.get(key(i)));
+                }
+            }
+            // The memory table isn't flushed to take the snapshots
+            assertEquals(0, data.list((dir, name) -> name.endsWith(".dat")).length);
+        }
+    }
+
+    /**
+     * Checks that the view contains the even keys with their first values only.
+     */
+    private static void assertOriginal(final Snapshot snapshot) throws IOException {
+        final Iterator<Record> records = snapshot.iterator(key(0));
+        for (int i = 0; i < KEYS; i += 2) {
+            final Record record = records.next();
+            assertEquals(key(i), record.getKey());
+            assertEquals(value(i, 0), record.getValue());
+            assertEquals(value(i, 0), snapshot.get(key(i)));
+        }
+        assertFalse(records.hasNext());
+        assertThrows(NoSuchElementException.class, () -> snapshot.get(key(1)));
+    }
+
+    private static String[] tables(final File data) {
+        return data.list((dir, name) -> name.endsWith(".dat"));
+    }
+
+    private static ByteBuffer value(
+            final int i,
+            final int version) {
+        return ByteBuffer.wrap(String.format("value%05d-%d", i, version).getBytes(StandardCharsets.US_ASCII));
+    }
+}
@@ -0,0 +1,135 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Lazily opened SSTables and the bounded cache of their files.
+ */
+class TableCacheTest extends TestBase {
+    private static final int TABLES = 10;
+    private static final int KEYS = 100;
+
+    @Test
+    void boundsOpenFiles(@TempDir File data) throws IOException {
+        final LsmConfig config = LsmConfig.builder().build();
+        final TableCache cache = new TableCache(2);
+        final List<SSTable> tables = new ArrayList<>();
+        for (int t = 0; t < TABLES; t++) {
+            final File file = new File(data, t + ".dat");
+            final List<Cell> cells = new ArrayList<>();
+            for (int i = 0; i < KEYS; i++) {
+                cells.add(new Cell(key(t * KEYS + i), new Value(1, key(i))));
+            }
+            final TableMeta meta = SSTable.serialize(file, t, cells.iterator(), cells.size(), config);
+            tables.add(new SSTable(file, meta, config, cache));
+        }
+        assertEquals(0, cache.size());
+
+        // Iterators keep reading the tables evicted by the lookups
+        final List<Iterator<Cell>> iterators = new ArrayList<>();
+        for (final SSTable table : tables) {
+            iterators.add(table.iterator(key(0)));
+        }
+        for (int round = 0; round < 3; round++) {
+            for (int t = 0; t < TABLES; t++) {
+                for (int i = 0; i < KEYS; i += 10) {
+                    assertEquals(key(i), tables.get(t).get(key(t * KEYS + i)).getData());
+                }
+                assertNull(tables.get(t).get(key(TABLES * KEYS)));
+                assertTrue(cache.size() <= 2);
+            }
+        }
+        for (int t = 0; t < TABLES; t++) {
+            final Iterator<Cell> cells = iterators.get(t);
+            for (int i = 0; i < KEYS; i++) {
+                assertEquals(key(t * KEYS + i), cells.next().getKey());
+            }
+            assertFalse(cells.hasNext());
+        }
+        tables.forEach(SSTable::close);
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void storageWithFewOpenFiles(@TempDir File data) throws IOException {
+        final LsmConfig config = LsmConfig.builder()
+                .flushThreshold(16 * 1024)
+                .compactionStrategy(CompactionStrategy.MANUAL)
+                .maxOpenFiles(1)
+                .build();
+        final Map<ByteBuffer, ByteBuffer> expected = new HashMap<>();
+        try (DAO dao = new LsmDAO(data, config)) {
+            for (int i = 0; i < 2_000; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomValue();
+                dao.upsert(key, value);
+                expected.put(key, value);
+            }
+        }
+        assertTrue(data.list().length > TABLES);
+
+        try (DAO dao = new LsmDAO(data, config)) {
+            final Iterator<Record> before = dao.iterator(ByteBuffer.allocate(0));
+            dao.compact();
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+            // The scan started before the compaction reads the replaced tables
+            int count = 0;
+            while (before.hasNext()) {
+                final Record record = before.next();
+                assertEquals(expected.get(record.getKey()), record.getValue());
+                count++;
+            }
+            assertEquals(expected.size(), count);
+        }
+    }
+
+    @Test
+    void retiredTables(@TempDir File data) throws IOException {
+        final LsmConfig config = LsmConfig.builder().build();
+        final TableCache cache = new TableCache(TABLES);
+        final List<Cell> cells = List.of(new Cell(key(0), new Value(1, key(1))));
+        final File first = new File(data, "1.dat");
+        final File second = new File(data, "2.dat");
+        final SSTable unused = new SSTable(
+                first, SSTable.serialize(first, 1, cells.iterator(), 1, config), config, cache);
+        final SSTable read = new SSTable(
+                second, SSTable.serialize(second, 2, cells.iterator(), 1, config), config, cache);
+        assertEquals(key(1), unused.get(key(0)).getData());
+
+        // The table no snapshot reads is closed and removed at once
+        unused.retire();
+        assertThrows(IOException.class, () -> unused.get(key(0)));
+        assertFalse(first.exists());
+        assertFalse(unused.retain());
+
+        // The table read by snapshots stays until the last of them releases it
+        assertTrue(read.retain());
+        assertTrue(read.retain());
+        read.retire();
+        read.release();
+        assertEquals(key(1), read.get(key(0)).getData());
+        assertTrue(second.exists());
+        read.release();
+        assertThrows(IOException.class, () -> read.get(key(0)));
+        assertFalse(second.exists());
+        assertEquals(0, cache.size());
+    }
+}
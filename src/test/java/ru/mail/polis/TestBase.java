@@ -19,6 +19,7 @@ package ru.mail.polis;
 import org.jetbrains.annotations.NotNull;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.concurrent.ThreadLocalRandom;
 
 /**
@@ -48,6 +49,14 @@ abstract class TestBase {
         return randomBuffer(VALUE_LENGTH);
     }
 
+    /**
+     * Keys ordered as the numbers.
+     */
+    @NotNull
+    static ByteBuffer key(final int i) {
+        return ByteBuffer.wrap(String.format("key%05d", i).getBytes(StandardCharsets.US_ASCII));
+    }
+
     @NotNull
     static ByteBuffer join(
             @NotNull final ByteBuffer left,
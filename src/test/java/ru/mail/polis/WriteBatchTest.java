@@ -0,0 +1,150 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Batches of mutations are applied and recovered as a whole.
+ */
+class WriteBatchTest extends TestBase {
+    private static final int BATCH_KEYS = 20;
+
+    @Test
+    void apply(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+        final ByteBuffer removed = randomKey();
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(removed, randomValue());
+            dao.apply(new WriteBatch()
+                    .upsert(key, randomValue())
+                    .remove(removed)
+                    .upsert(key, value));
+            assertEquals(value, dao.get(key));
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+            dao.apply(new WriteBatch());
+        }
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(value, dao.get(key));
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+        }
+    }
+
+    @Test
+    void readersSeeWholeBatches(@TempDir File data) throws Exception {
+        final LsmConfig config = LsmConfig.builder()
+                .flushThreshold(64 * 1024)
+                .build();
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try (DAO dao = new LsmDAO(data, config)) {
+            final Future<?> first = executor.submit(() -> write(dao, 0));
+            final Future<?> second = executor.submit(() -> write(dao, 1));
+            final ByteBuffer from = ByteBuffer.allocate(0);
+            while (!first.isDone() || !second.isDone()) {
+                final Iterator<Record> records = dao.iterator(from);
+                if (!records.hasNext()) {
+                    continue;
+                }
+                final ByteBuffer value = records.next().getValue();
+                int count = 1;
+                while (records.hasNext()) {
+                    assertEquals(value, records.next().getValue());
+                    count++;
+                }
+                assertEquals(BATCH_KEYS, count);
+            }
+            first.get();
+            second.get();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void recoverWithoutClose(@TempDir File data) throws IOException {
+        final ByteBuffer single = randomKey();
+        final ByteBuffer value = randomValue();
+        final List<ByteBuffer> keys = new ArrayList<>();
+        final WriteBatch batch = new WriteBatch();
+        for (int i = 0; i < 100; i++) {
+            final ByteBuffer key = randomKey();
+            keys.add(key);
+            batch.upsert(key, value);
+        }
+        batch.remove(single);
+
+        // "Crash" without closing the storage
+        final DAO crashed = DAOFactory.create(data);
+        crashed.upsert(single, value);
+        crashed.apply(batch);
+        try (DAO dao = DAOFactory.create(data)) {
+            for (final ByteBuffer key : keys) {
+                assertEquals(value, dao.get(key));
+            }
+            assertThrows(NoSuchElementException.class, () -> dao.get(single));
+        }
+    }
+
+    @Test
+    void tornBatch(@TempDir File data) throws IOException {
+        final ByteBuffer single = randomKey();
+        final ByteBuffer value = randomValue();
+        final List<ByteBuffer> keys = new ArrayList<>();
+        final WriteBatch batch = new WriteBatch();
+        for (int i = 0; i < 100; i++) {
+            final ByteBuffer key = randomKey();
+            keys.add(key);
+            batch.upsert(key, value);
+        }
+
+        final DAO crashed = DAOFactory.create(data);
+        crashed.upsert(single, value);
+        crashed.apply(batch);
+        // The tail of the batch didn't reach the disk
+        final File[] logs = data.listFiles((dir, name) -> name.endsWith(WriteAheadLog.FILE_POSTFIX));
+        assertEquals(1, logs.length);
+        try (FileChannel log = FileChannel.open(logs[0].toPath(), StandardOpenOption.WRITE)) {
+            log.truncate(log.size() - 1);
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(value, dao.get(single));
+            for (final ByteBuffer key : keys) {
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            }
+        }
+    }
+
+    /**
+     * Applies the batches, each of them sets all the keys to the same value unique to the writer and the batch.
+     */
+    private static Void write(
+            final DAO dao,
+            final int writer) throws IOException {
+        for (int i = 0; i < 2_000; i++) {
+            final ByteBuffer value = ByteBuffer.allocate(Integer.BYTES * 16).putInt(0, i).putInt(4, writer);
+            final WriteBatch batch = new WriteBatch();
+            for (int key = 0; key < BATCH_KEYS; key++) {
+                batch.upsert(ByteBuffer.allocate(Integer.BYTES).putInt(0, key), value);
+            }
+            dao.apply(batch);
+        }
+        return null;
+    }
+}